@@ -0,0 +1,121 @@
+package org.geekbang.time.commonmistakes.concurrenttool.concurrenthashmapmisuse;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 对比 ConcurrentHashMapMisuseController 中 wrong()（先 size() 再 put，不加锁）、right()（synchronized 整个 map）
+ * 和 bounded()（CAS 预留位置）这三种“不超过容量地写入”的吞吐量
+ * <p>
+ *     和 Controller 一样由 15 个线程并发写入同一个 map。每次操作是一次有容量检查的写入：
+ *     每个线程按顺序写自己预先生成好的 key，同时删除自己 window 次之前写入的 key，map 一直保持在接近满的状态，
+ *     所有线程的 window 加起来比容量多出线程数个，所以容量检查会真正生效，一部分写入会因为已满而被拒绝。<br>
+ *     key 在 Setup 中生成，测量的只有写入本身，不包括 UUID.randomUUID()。wrong 只是没有同步开销的参照，它的 map 会超出容量。
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+@Threads(15)
+public class BoundedFillBenchmark {
+
+    private static final Long VALUE = 1L;
+
+    @Param({"1000", "100000"})
+    public int itemCount;
+
+    private ConcurrentMap<String, Long> concurrentMap;
+
+    private BoundedConcurrentMap<String, Long> boundedMap;
+
+    /**
+     * 每轮迭代从空 map 开始
+     */
+    @Setup(Level.Iteration)
+    public void createMaps() {
+        concurrentMap = new ConcurrentHashMap<>();
+        boundedMap = new BoundedConcurrentMap<>(itemCount);
+    }
+
+    @State(Scope.Thread)
+    public static class Keys {
+
+        private String[] keys;
+
+        private int mask;
+
+        private int window;
+
+        private int index;
+
+        @Setup(Level.Trial)
+        public void generateKeys(BoundedFillBenchmark benchmark, ThreadParams threadParams) {
+            window = benchmark.itemCount / threadParams.getThreadCount() + 1;
+            int length = Integer.highestOneBit(window * 2 - 1) << 1;
+            keys = new String[length];
+            for (int i = 0; i < length; i++) {
+                keys[i] = UUID.randomUUID().toString();
+            }
+            mask = length - 1;
+        }
+
+        /**
+         * 移到下一个 key，返回 window 次之前写入的、这次要删除的 key
+         */
+        String advance() {
+            return keys[(++index - window) & mask];
+        }
+
+        String current() {
+            return keys[index & mask];
+        }
+    }
+
+    @Benchmark
+    public boolean wrongPut(Keys keys) {
+        concurrentMap.remove(keys.advance());
+        if (concurrentMap.size() < itemCount) {
+            concurrentMap.put(keys.current(), VALUE);
+            return true;
+        }
+        return false;
+    }
+
+    @Benchmark
+    public boolean synchronizedPut(Keys keys) {
+        concurrentMap.remove(keys.advance());
+        synchronized (concurrentMap) {
+            if (concurrentMap.size() < itemCount) {
+                concurrentMap.put(keys.current(), VALUE);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    @Benchmark
+    public boolean boundedPut(Keys keys) {
+        boundedMap.remove(keys.advance());
+        return boundedMap.putIfAbsent(keys.current(), VALUE);
+    }
+}
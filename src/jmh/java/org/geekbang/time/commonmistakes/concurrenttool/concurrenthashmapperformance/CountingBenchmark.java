@@ -0,0 +1,86 @@
+package org.geekbang.time.commonmistakes.concurrenttool.concurrenthashmapperformance;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+/**
+ * 各种并发计数方式的吞吐量
+ * <p>
+ *     key 预先按分布生成好放在数组里，每个线程从自己的位置开始顺序读取，测量的只是计数本身，不包括生成随机数。
+ *     数组长度至少是 key 种类的 4 倍（向上取整到 2 的幂），cardinality 为一百万时也会用到全部的 key，而不是只有数组能装下的那一部分。<br>
+ *     线程数通过 -t 指定，CountingBenchmarkRunner 会依次跑 1 到 CPU 核数的多个线程数。
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class CountingBenchmark {
+
+    private static final int MIN_KEY_BUFFER_SIZE = 1 << 16;
+
+    @Param
+    public CountingStrategy strategy;
+
+    @Param({"10", "1000", "1000000"})
+    public int cardinality;
+
+    @Param
+    public KeyDistribution distribution;
+
+    private KeyCounter counter;
+
+    private int[] keys;
+
+    private int keyMask;
+
+    @Setup(Level.Trial)
+    public void generateKeys() {
+        IntSupplier generator = distribution.generator(cardinality);
+        int size = Math.max(MIN_KEY_BUFFER_SIZE, Integer.highestOneBit(cardinality * 4 - 1) << 1);
+        keys = new int[size];
+        for (int i = 0; i < size; i++) {
+            keys[i] = generator.getAsInt();
+        }
+        keyMask = size - 1;
+    }
+
+    /**
+     * 每轮迭代换一个新的计数器，避免 map 越来越大影响后面的迭代
+     */
+    @Setup(Level.Iteration)
+    public void createCounter() {
+        counter = strategy.create(cardinality);
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+
+        private int index;
+
+        @Setup(Level.Trial)
+        public void randomStart() {
+            index = (int) (Thread.currentThread().getId() * 7919);
+        }
+    }
+
+    @Benchmark
+    public void increment(Cursor cursor) {
+        counter.increment(keys[cursor.index++ & keyMask]);
+    }
+}
@@ -0,0 +1,37 @@
+package org.geekbang.time.commonmistakes.concurrenttool.concurrenthashmapperformance;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * 按线程数 1、2、4 …… 直到 CPU 核数依次执行 CountingBenchmark，每个线程数输出一个 JSON 结果文件，
+ * 包含 ops/s 以及 GC profiler 统计的每次操作分配的字节数（gc.alloc.rate.norm），可以保存下来跟踪历次的变化
+ * <p>
+ *     用法：mvn -Pjmh -DskipTests package，
+ *     然后 java -cp target/benchmarks.jar org.geekbang.time.commonmistakes.concurrenttool.concurrenthashmapperformance.CountingBenchmarkRunner [输出目录]
+ * </p>
+ */
+public class CountingBenchmarkRunner {
+
+    public static void main(String[] args) throws RunnerException {
+        String outputDir = args.length > 0 ? args[0] : "target";
+        int cpus = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; ; threads = Math.min(threads * 2, cpus)) {
+            Options options = new OptionsBuilder()
+                    .include(CountingBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .addProfiler(GCProfiler.class)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result(outputDir + "/jmh-counting-" + threads + "t.json")
+                    .build();
+            new Runner(options).run();
+            if (threads == cpus) {
+                break;
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package org.geekbang.time.commonmistakes.cachedesign.cacheinvalid;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 布隆过滤器：用很小的内存判断一个 id “一定不存在”还是“可能存在”
+ * <p>
+ *     mightContain 返回 false 时 id 一定不存在，返回 true 时有 fpp 的概率误判。<br>
+ *     位数组使用 AtomicLongArray，put 通过 CAS 置位，可以在查询的同时并发地增量添加。
+ * </p>
+ */
+public class BloomFilter {
+
+    private final AtomicLongArray bits;
+
+    private final long bitSize;
+
+    private final int hashFunctions;
+
+    /**
+     * @param expectedInsertions 预计添加的元素个数
+     * @param fpp                期望的误判率，例如 0.001
+     */
+    public BloomFilter(long expectedInsertions, double fpp) {
+        if (expectedInsertions <= 0 || fpp <= 0 || fpp >= 1) {
+            throw new IllegalArgumentException("expectedInsertions 必须大于 0，fpp 必须在 (0, 1) 之间");
+        }
+        // m = -n * ln(p) / (ln2)^2，k = m / n * ln2
+        long m = (long) Math.ceil(-expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        this.bits = new AtomicLongArray((int) ((m + 63) >>> 6));
+        this.bitSize = (long) bits.length() << 6;
+        this.hashFunctions = Math.max(1, (int) Math.round((double) m / expectedInsertions * Math.log(2)));
+    }
+
+    public void put(long value) {
+        long hash64 = mix64(value);
+        int hash1 = (int) hash64;
+        int hash2 = (int) (hash64 >>> 32);
+        for (int i = 1; i <= hashFunctions; i++) {
+            long bitIndex = ((hash1 + (long) i * hash2) & Long.MAX_VALUE) % bitSize;
+            int index = (int) (bitIndex >>> 6);
+            long mask = 1L << bitIndex;
+            long word;
+            do {
+                word = bits.get(index);
+                if ((word & mask) != 0) {
+                    break;
+                }
+            } while (!bits.compareAndSet(index, word, word | mask));
+        }
+    }
+
+    public boolean mightContain(long value) {
+        long hash64 = mix64(value);
+        int hash1 = (int) hash64;
+        int hash2 = (int) (hash64 >>> 32);
+        for (int i = 1; i <= hashFunctions; i++) {
+            long bitIndex = ((hash1 + (long) i * hash2) & Long.MAX_VALUE) % bitSize;
+            if ((bits.get((int) (bitIndex >>> 6)) & (1L << bitIndex)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * MurmurHash3 的 fmix64，把相邻的 id 打散到整个 64 位空间
+     */
+    private static long mix64(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+}
@@ -0,0 +1,70 @@
+package org.geekbang.time.commonmistakes.cachedesign.cacheinvalid;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.List;
+import java.util.Map;
+
+@RestController
+@RequestMapping("/cacheinvalid")
+public class CacheInvalidController {
+
+    /** 一次批量查询最多允许的 id 个数 */
+    private static final int MAX_BATCH_SIZE = 500;
+
+    @Autowired
+    private CacheInvalidService cacheInvalidService;
+
+    @GetMapping("/city")
+    public String city() {
+        return cacheInvalidService.city();
+    }
+
+    /**
+     * 新增一个城市，返回新城市的 id。开启防缓存穿透时新 id 会加入布隆过滤器，之后马上可以查到
+     */
+    @PostMapping("/city")
+    public int addCity() {
+        return cacheInvalidService.addCity();
+    }
+
+    /**
+     * 批量查询城市，例如 /cacheinvalid/cities?ids=1,2,3
+     */
+    @GetMapping("/cities")
+    public Map<Integer, String> cities(@RequestParam List<Integer> ids) {
+        if (ids.size() > MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException("一次最多查询 " + MAX_BATCH_SIZE + " 个城市");
+        }
+        return cacheInvalidService.cities(ids);
+    }
+
+    /**
+     * 当前自动识别出的热点 key
+     */
+    @GetMapping("/hotkeys")
+    public List<Map<String, Object>> hotKeys() {
+        return cacheInvalidService.hotKeys();
+    }
+
+    /**
+     * 当前存储格式下城市数据占用的 Redis 内存
+     */
+    @GetMapping("/storage")
+    public Map<String, Object> storage() {
+        return cacheInvalidService.storage();
+    }
+
+    /**
+     * 各级缓存命中、回源次数以及 Redis / DB 访问延迟的分位数
+     */
+    @GetMapping("/metrics")
+    public Map<String, Object> metrics() {
+        return cacheInvalidService.metrics();
+    }
+}
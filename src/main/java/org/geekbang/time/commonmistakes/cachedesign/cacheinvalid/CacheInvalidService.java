@@ -4,19 +4,79 @@ import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.RandomStringUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import io.lettuce.core.cluster.api.async.RedisClusterAsyncCommands;
+import io.lettuce.core.codec.ByteArrayCodec;
+import io.lettuce.core.output.IntegerOutput;
+import io.lettuce.core.protocol.CommandArgs;
+import io.lettuce.core.protocol.ProtocolKeyword;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.lettuce.LettuceConnection;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.web.bind.annotation.GetMapping;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 /**
  * 模拟缓存雪崩场景
+ * <p>
+ *     关闭防雪崩模式时所有 key 使用相同的过期时间，它们会在同一时刻集中过期，DB QPS 呈现锯齿状的尖峰；<br>
+ *     开启后过期时间加上随机抖动，并由后台线程在 key 过期前提前刷新（refresh-ahead），
+ *     只要 key 持续被访问就永远不会在 Redis 中过期，DB QPS 保持平稳。
+ * </p>
+ * <p>
+ *     开启近端缓存后，city() 先查进程内的 L1（NearCache），未命中再查 Redis（L2），最后才回源 DB，
+ *     热点 key 的读取不再需要一次网络往返。
+ * </p>
+ * <p>
+ *     开启 single-flight 后，同一个 key 的并发回源会被合并成一次，一个 key 每次过期最多只会访问一次 DB。
+ * </p>
+ * <p>
+ *     预热和批量查询都通过 Redis pipeline 分批写入，一批 key 只需要一次网络往返，而不是每个 key 一次。
+ * </p>
+ * <p>
+ *     开启防缓存穿透后，不存在的 id 先由布隆过滤器在内存中拦截；少量误判漏过的 id 回源后在缓存中写入一个短过期时间的空值，
+ *     避免同一个不存在的 id 反复打到 DB。
+ * </p>
+ * <p>
+ *     开启热点 key 探测后，city() 的访问会被采样统计，访问频率超过阈值的 key 自动复制到本地的热点副本中，
+ *     由后台定时从 Redis 推送最新值，避免少数热点 key 把压力集中到某一个 Redis 分片上。
+ * </p>
+ * <p>
+ *     Redis 中的存储格式由 CityStore 决定：默认每个城市一个 string key；HASH_BUCKET 格式把相邻的城市打包进 hash，
+ *     内存占用小得多。两种格式的内存占用通过 /cacheinvalid/storage 查看，查询延迟见 /cacheinvalid/metrics。
+ * </p>
+ * <p>
+ *     cityAsync() 通过 Lettuce 的异步 API 访问 Redis，不占用调用线程，少量线程就可以支撑成千上万的并发请求。
+ * </p>
+ * <p>
+ *     各级缓存的命中、回源次数以及 Redis / DB 的访问延迟都记录在 CacheMetrics 中，通过 /cacheinvalid/metrics 查看。
+ * </p>
  *
  * @author ning.li
  * @date 2024/6/26 23:54
@@ -28,40 +88,709 @@ public class CacheInvalidService {
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
 
-    private static final AtomicLong atomicInteger = new AtomicLong();
+    private final CacheMetrics metrics = new CacheMetrics();
+
+    /** 最近一秒的 DB QPS */
+    private volatile long dbQps;
+
+    /** 观察到的 DB QPS 峰值 */
+    private final AtomicLong peakDbQps = new AtomicLong();
 
     private static final String CACHE_KEY_PREFIX = "city";
 
+    /** 城市数量 */
+    static final int CITY_COUNT = 1000;
+
     /** 缓存过期时间 */
-    private static final long CACHE_TIMEOUT = 10;
+    static final long CACHE_TIMEOUT = 10;
+
+    /** 过期时间的随机抖动上限，让 key 的过期时间分散开 */
+    private static final long CACHE_TIMEOUT_JITTER = 5;
+
+    /** 在 key 过期前多少秒由后台线程提前刷新 */
+    private static final long REFRESH_AHEAD_SECONDS = 2;
+
+    private static final ProtocolKeyword MEMORY = new ProtocolKeyword() {
+        @Override
+        public byte[] getBytes() {
+            return name().getBytes(StandardCharsets.US_ASCII);
+        }
+
+        @Override
+        public String name() {
+            return "MEMORY";
+        }
+    };
+
+    /** 不存在的 id 在缓存中的占位值 */
+    private static final String NULL_VALUE = "";
+
+    /** 空值的过期时间，要足够短，让新增的城市能尽快可见 */
+    private static final long NULL_VALUE_TIMEOUT = 3;
+
+    /** 是否开启防雪崩模式（随机过期时间 + 提前刷新） */
+    @Value("${cacheinvalid.anti-avalanche:true}")
+    private boolean antiAvalanche;
+
+    /** 提前刷新任务，每个 key 最多只有一个待执行的刷新任务 */
+    private final ConcurrentMap<Integer, RefreshTask> refreshTasks = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService refreshScheduler = Executors.newScheduledThreadPool(2);
+
+    /** 是否开启进程内近端缓存（L1） */
+    @Value("${cacheinvalid.near-cache.enabled:true}")
+    private boolean nearCacheEnabled;
+
+    @Value("${cacheinvalid.near-cache.maximum-size:10000}")
+    private int nearCacheMaximumSize;
+
+    /** L1 的过期时间要远小于 Redis 的，它决定了 L1 和 Redis 之间最多不一致多久 */
+    @Value("${cacheinvalid.near-cache.expire-after-write-millis:1000}")
+    private long nearCacheExpireAfterWriteMillis;
+
+    private NearCache<String, String> nearCache;
+
+    /** 是否合并同一个 key 的并发回源 */
+    @Value("${cacheinvalid.single-flight:true}")
+    private boolean singleFlightEnabled;
+
+    private final SingleFlight<Integer, String> singleFlight = new SingleFlight<>();
+
+    /** 预热时每批通过 pipeline 写入的 key 数量 */
+    @Value("${cacheinvalid.warm-up-batch-size:100}")
+    private int warmUpBatchSize;
+
+    /** 是否开启防缓存穿透（布隆过滤器 + 空值缓存） */
+    @Value("${cacheinvalid.penetration-guard.enabled:true}")
+    private boolean penetrationGuardEnabled;
+
+    /** 布隆过滤器的误判率 */
+    @Value("${cacheinvalid.penetration-guard.bloom-fpp:0.001}")
+    private double bloomFpp;
+
+    /** 所有存在的城市 id，为新增城市预留了空间 */
+    private BloomFilter cityIdFilter;
+
+    /** 模拟 DB 中当前最大的城市 id，1 到 maxCityId 之间的城市都存在 */
+    private final AtomicInteger maxCityId = new AtomicInteger(CITY_COUNT);
+
+    /** Lettuce 的异步命令接口，所有调用共享同一个 Lettuce 原生连接 */
+    private volatile RedisClusterAsyncCommands<byte[], byte[]> asyncCommands;
+
+    private RedisConnection asyncConnection;
+
+    /** 是否开启热点 key 探测和本地热点副本 */
+    @Value("${cacheinvalid.hot-key.enabled:true}")
+    private boolean hotKeyEnabled;
+
+    /** 每多少次访问采样一次 */
+    @Value("${cacheinvalid.hot-key.sample-rate:10}")
+    private int hotKeySampleRate;
+
+    /** 频率衰减窗口内的采样次数 */
+    @Value("${cacheinvalid.hot-key.window-samples:10000}")
+    private int hotKeyWindowSamples;
+
+    /** 采样占比超过这个值的 key 是热点 */
+    @Value("${cacheinvalid.hot-key.threshold-ratio:0.01}")
+    private double hotKeyThresholdRatio;
+
+    /** 热点副本的过期时间，后台每隔一半的时间从 Redis 推送一次最新值 */
+    @Value("${cacheinvalid.hot-key.replica-ttl-millis:500}")
+    private long hotKeyReplicaTtlMillis;
+
+    private HotKeyDetector<Integer> hotKeyDetector;
+
+    private HotKeyReplica<Integer, String> hotKeyReplica;
+
+    /** 城市数据在 Redis 中的存储格式 */
+    @Value("${cacheinvalid.storage.format:STRING}")
+    private CityStore.Format storageFormat;
+
+    /** HASH_BUCKET 格式下每个 hash 中的城市数量，不要超过 Redis 的 hash-max-ziplist-entries */
+    @Value("${cacheinvalid.storage.bucket-size:100}")
+    private int storageBucketSize;
+
+    private CityStore cityStore;
+
+    /** 异步查询缓存未命中时回源 DB 的线程池，避免在 Lettuce 的 IO 线程上执行阻塞操作 */
+    private final ExecutorService dbLoadExecutor = Executors.newFixedThreadPool(4);
 
     @PostConstruct
-    public void wrongInit() {
-        IntStream.rangeClosed(1, 1000)
-                .forEach(i -> stringRedisTemplate.opsForValue().set(CACHE_KEY_PREFIX + i, this.getCityFromDb(i), CACHE_TIMEOUT, TimeUnit.SECONDS));
-        log.info("Cache init finished");
+    public void init() {
+        cityStore = storageFormat == CityStore.Format.HASH_BUCKET
+                ? new HashBucketCityStore(stringRedisTemplate, this::asyncCommands, storageBucketSize, CACHE_TIMEOUT + CACHE_TIMEOUT_JITTER)
+                : new StringCityStore(stringRedisTemplate, this::asyncCommands);
+        if (nearCacheEnabled) {
+            nearCache = new NearCache<>(nearCacheMaximumSize, nearCacheExpireAfterWriteMillis, TimeUnit.MILLISECONDS);
+        }
+        if (penetrationGuardEnabled) {
+            cityIdFilter = new BloomFilter(CITY_COUNT * 10L, bloomFpp);
+        }
+        this.warmUp();
+        if (hotKeyEnabled) {
+            hotKeyDetector = new HotKeyDetector<>(hotKeySampleRate, hotKeyWindowSamples, hotKeyThresholdRatio);
+            hotKeyReplica = new HotKeyReplica<>(hotKeyReplicaTtlMillis, TimeUnit.MILLISECONDS);
+            long period = Math.max(1, hotKeyReplicaTtlMillis / 2);
+            refreshScheduler.scheduleAtFixedRate(this::refreshHotKeys, period, period, TimeUnit.MILLISECONDS);
+        }
+        AtomicLong lastDbLoadCount = new AtomicLong(metrics.dbLoadCount());
         Executors.newSingleThreadScheduledExecutor().scheduleAtFixedRate(() -> {
-            log.info("数据库压力，DB QPS : {}", atomicInteger.getAndSet(0));
-        }, 0, 1, TimeUnit.SECONDS);
+            long dbLoadCount = metrics.dbLoadCount();
+            dbQps = dbLoadCount - lastDbLoadCount.getAndSet(dbLoadCount);
+            peakDbQps.accumulateAndGet(dbQps, Math::max);
+            log.debug("数据库压力，DB QPS : {}", dbQps);
+        }, 1, 1, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        refreshScheduler.shutdownNow();
+        dbLoadExecutor.shutdownNow();
+        if (asyncConnection != null) {
+            asyncConnection.close();
+        }
+    }
+
+    /**
+     * 分批预热：每批从 DB 批量加载一次，再通过一次 pipeline 写入 Redis
+     */
+    public void warmUp() {
+        long start = System.currentTimeMillis();
+        int batchSize = Math.max(1, warmUpBatchSize);
+        int batches = 0;
+        for (int from = 1; from <= CITY_COUNT; from += batchSize) {
+            List<Integer> cityIds = IntStream.rangeClosed(from, Math.min(from + batchSize - 1, CITY_COUNT))
+                    .boxed().collect(Collectors.toList());
+            Map<Integer, String> cities = this.getCitiesFromDb(cityIds);
+            if (cityIdFilter != null) {
+                cities.keySet().forEach(cityIdFilter::put);
+            }
+            this.cacheCities(cities);
+            batches++;
+        }
+        log.info("Cache init finished, anti-avalanche: {}, storage: {}, {} keys in {} batches, took {} ms",
+                antiAvalanche, cityStore.format(), CITY_COUNT, batches, System.currentTimeMillis() - start);
     }
 
     public String city() {
-        int cityId = ThreadLocalRandom.current().nextInt(1000) + 1;
+        return this.city(ThreadLocalRandom.current().nextInt(CITY_COUNT) + 1);
+    }
+
+    /**
+     * 查询指定城市
+     *
+     * @return 城市不存在时返回 null
+     */
+    public String city(int cityId) {
+        if (cityIdFilter != null && !cityIdFilter.mightContain(cityId)) {
+            metrics.recordBloomRejected();
+            return null;
+        }
         String key = CACHE_KEY_PREFIX + cityId;
-        String data = stringRedisTemplate.opsForValue().get(key);
+        String data = this.hotReplicaGet(cityId);
+        if (data == null) {
+            data = this.nearCacheGet(key);
+            this.pushToHotReplica(cityId, data);
+        }
+        if (data != null) {
+            this.markAccessed(cityId);
+            return this.unwrapNull(data);
+        }
 
+        data = this.redisGet(cityId);
+        metrics.recordL2(data != null);
         if (data == null) {
-            data = this.getCityFromDb(cityId);
-            if (StringUtils.isNoneBlank(data)) {
-                stringRedisTemplate.opsForValue().set(key, data, CACHE_TIMEOUT, TimeUnit.SECONDS);
+            return singleFlightEnabled ? singleFlight.load(cityId, this::loadCity) : this.loadFromDbAndCache(cityId);
+        }
+        this.markAccessed(cityId);
+        if (nearCache != null) {
+            nearCache.put(key, data);
+        }
+        this.pushToHotReplica(cityId, data);
+        return this.unwrapNull(data);
+    }
+
+    public CompletableFuture<String> cityAsync() {
+        return this.cityAsync(ThreadLocalRandom.current().nextInt(CITY_COUNT) + 1);
+    }
+
+    /**
+     * 异步查询指定城市：L1 命中直接返回，否则通过 Lettuce 异步查询 Redis，未命中时在 dbLoadExecutor 上回源
+     */
+    public CompletableFuture<String> cityAsync(int cityId) {
+        if (cityIdFilter != null && !cityIdFilter.mightContain(cityId)) {
+            metrics.recordBloomRejected();
+            return CompletableFuture.completedFuture(null);
+        }
+        String key = CACHE_KEY_PREFIX + cityId;
+        String cached = this.hotReplicaGet(cityId);
+        if (cached == null) {
+            cached = this.nearCacheGet(key);
+            this.pushToHotReplica(cityId, cached);
+        }
+        if (cached != null) {
+            this.markAccessed(cityId);
+            return CompletableFuture.completedFuture(this.unwrapNull(cached));
+        }
+
+        long start = System.nanoTime();
+        return cityStore.getAsync(cityId)
+                .thenCompose(data -> {
+                    metrics.recordRedisGet(System.nanoTime() - start);
+                    metrics.recordL2(data != null);
+                    if (data == null) {
+                        return CompletableFuture.supplyAsync(() -> singleFlightEnabled
+                                ? singleFlight.load(cityId, this::loadCity) : this.loadFromDbAndCache(cityId), dbLoadExecutor);
+                    }
+                    this.markAccessed(cityId);
+                    if (nearCache != null) {
+                        nearCache.put(key, data);
+                    }
+                    this.pushToHotReplica(cityId, data);
+                    return CompletableFuture.completedFuture(this.unwrapNull(data));
+                });
+    }
+
+    private RedisClusterAsyncCommands<byte[], byte[]> asyncCommands() {
+        RedisClusterAsyncCommands<byte[], byte[]> commands = asyncCommands;
+        if (commands == null) {
+            synchronized (this) {
+                commands = asyncCommands;
+                if (commands == null) {
+                    RedisConnection connection = stringRedisTemplate.getRequiredConnectionFactory().getConnection();
+                    if (!(connection instanceof LettuceConnection)) {
+                        connection.close();
+                        throw new UnsupportedOperationException("cityAsync 需要使用 Lettuce 作为 Redis 客户端");
+                    }
+                    asyncConnection = connection;
+                    commands = asyncCommands = ((LettuceConnection) connection).getNativeConnection();
+                }
             }
         }
+        return commands;
+    }
+
+    /**
+     * 新增城市：加入布隆过滤器，并清掉之前可能缓存的空值
+     *
+     * @return 新城市的 id
+     */
+    public int addCity() {
+        int cityId = maxCityId.incrementAndGet();
+        if (cityIdFilter != null) {
+            cityIdFilter.put(cityId);
+        }
+        if (nearCache != null) {
+            nearCache.invalidate(CACHE_KEY_PREFIX + cityId);
+        }
+        cityStore.delete(cityId);
+        return cityId;
+    }
+
+    /**
+     * 批量查询：先查 L1，剩下的 key 用一次 MGET 查 Redis，仍然缺失的 key 一次性从 DB 批量加载并通过 pipeline 回填
+     *
+     * @return 按请求顺序排列的城市数据，重复的 id 只返回一次
+     */
+    public Map<Integer, String> cities(Collection<Integer> cityIds) {
+        Map<Integer, String> found = new HashMap<>();
+        List<Integer> redisIds = new ArrayList<>();
+        for (Integer cityId : new LinkedHashSet<>(cityIds)) {
+            if (cityIdFilter != null && !cityIdFilter.mightContain(cityId)) {
+                metrics.recordBloomRejected();
+                continue;
+            }
+            String data = this.nearCacheGet(CACHE_KEY_PREFIX + cityId);
+            if (data != null) {
+                this.markAccessed(cityId);
+                found.put(cityId, data);
+            } else {
+                redisIds.add(cityId);
+            }
+        }
+
+        if (!redisIds.isEmpty()) {
+            long start = System.nanoTime();
+            List<String> values = cityStore.multiGet(redisIds);
+            metrics.recordRedisGet(System.nanoTime() - start);
+            List<Integer> missingIds = new ArrayList<>();
+            for (int i = 0; i < redisIds.size(); i++) {
+                Integer cityId = redisIds.get(i);
+                String data = values == null ? null : values.get(i);
+                metrics.recordL2(data != null);
+                if (data == null) {
+                    missingIds.add(cityId);
+                } else {
+                    this.markAccessed(cityId);
+                    if (nearCache != null) {
+                        nearCache.put(CACHE_KEY_PREFIX + cityId, data);
+                    }
+                    found.put(cityId, data);
+                }
+            }
+            if (!missingIds.isEmpty()) {
+                Map<Integer, String> loaded = this.getCitiesFromDb(missingIds);
+                loaded.values().removeIf(StringUtils::isBlank);
+                this.cacheCities(loaded);
+                found.putAll(loaded);
+                List<Integer> nonexistentIds = missingIds.stream().filter(id -> !loaded.containsKey(id)).collect(Collectors.toList());
+                metrics.recordNonexistentDbLoads(nonexistentIds.size());
+                this.cacheNullValues(nonexistentIds);
+            }
+        }
+
+        Map<Integer, String> result = new LinkedHashMap<>();
+        for (Integer cityId : cityIds) {
+            String data = found.get(cityId);
+            if (data != null && !NULL_VALUE.equals(data)) {
+                result.put(cityId, data);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * single-flight 的 loader：先再查一次 Redis，上一个回源者可能刚刚回填了缓存
+     */
+    private String loadCity(int cityId) {
+        String data = this.redisGet(cityId);
+        return data != null ? this.unwrapNull(data) : this.loadFromDbAndCache(cityId);
+    }
+
+    private String loadFromDbAndCache(int cityId) {
+        String data = this.getCityFromDb(cityId);
+        if (StringUtils.isNoneBlank(data)) {
+            this.cacheCity(cityId, data);
+        } else {
+            metrics.recordNonexistentDbLoads(1);
+            this.cacheNullValues(Collections.singletonList(cityId));
+        }
         return data;
     }
 
+    private String unwrapNull(String data) {
+        if (NULL_VALUE.equals(data)) {
+            metrics.recordNullValueHit();
+            return null;
+        }
+        return data;
+    }
+
+    /**
+     * 记录一次访问，key 是热点时从热点副本读取
+     */
+    private String hotReplicaGet(int cityId) {
+        if (hotKeyDetector == null || !hotKeyDetector.record(cityId)) {
+            return null;
+        }
+        String data = hotKeyReplica.get(cityId);
+        if (data != null) {
+            metrics.recordHotReplicaHit();
+        }
+        return data;
+    }
+
+    /**
+     * key 是热点时把最新值推送到热点副本
+     */
+    private void pushToHotReplica(int cityId, String data) {
+        if (data != null && hotKeyDetector != null && hotKeyDetector.isHot(cityId)) {
+            hotKeyReplica.put(cityId, data);
+        }
+    }
+
+    /**
+     * 移除已经冷却的热点 key，再用一次 MGET 把所有热点 key 的最新值推送到热点副本
+     */
+    private void refreshHotKeys() {
+        try {
+            hotKeyDetector.sweep().forEach(hotKeyReplica::remove);
+            List<Integer> cityIds = new ArrayList<>(hotKeyDetector.hotKeys().keySet());
+            if (cityIds.isEmpty()) {
+                return;
+            }
+            long start = System.nanoTime();
+            List<String> values = cityStore.multiGet(cityIds);
+            metrics.recordRedisGet(System.nanoTime() - start);
+            for (int i = 0; values != null && i < cityIds.size(); i++) {
+                if (values.get(i) != null) {
+                    hotKeyReplica.put(cityIds.get(i), values.get(i));
+                }
+            }
+        } catch (Exception e) {
+            log.error("refresh hot keys error ", e);
+        }
+    }
+
+    /**
+     * 当前的热点 key 及其采样频率，按频率从高到低排列
+     */
+    public List<Map<String, Object>> hotKeys() {
+        if (hotKeyDetector == null) {
+            return Collections.emptyList();
+        }
+        return hotKeyDetector.hotKeys().entrySet().stream()
+                .map(entry -> {
+                    Map<String, Object> hotKey = new LinkedHashMap<>();
+                    hotKey.put("key", CACHE_KEY_PREFIX + entry.getKey());
+                    hotKey.put("sampledFrequency", hotKeyDetector.frequency(entry.getKey()));
+                    hotKey.put("promotedAt", entry.getValue());
+                    return hotKey;
+                })
+                .sorted(Comparator.comparing(hotKey -> -(Integer) hotKey.get("sampledFrequency")))
+                .collect(Collectors.toList());
+    }
+
+    private String nearCacheGet(String key) {
+        if (nearCache == null) {
+            return null;
+        }
+        String data = nearCache.get(key);
+        metrics.recordL1(data != null);
+        return data;
+    }
+
+    private String redisGet(int cityId) {
+        long start = System.nanoTime();
+        try {
+            return cityStore.get(cityId);
+        } finally {
+            metrics.recordRedisGet(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * 累计的 DB 访问次数
+     */
+    public long dbLoadCount() {
+        return metrics.dbLoadCount();
+    }
+
+    /**
+     * seconds 秒内允许的最多 DB 访问次数：每个 key 每个缓存周期最多回源一次
+     */
+    public long dbLoadBudget(long seconds) {
+        long period = antiAvalanche ? CACHE_TIMEOUT - REFRESH_AHEAD_SECONDS : CACHE_TIMEOUT;
+        return CITY_COUNT * (seconds / period + 1);
+    }
+
+    /**
+     * 观察到的 DB QPS 峰值
+     */
+    public long peakDbQps() {
+        return peakDbQps.get();
+    }
+
+    /**
+     * 查询不存在的 id 而产生的 DB 访问次数
+     */
+    public long nonexistentDbLoadCount() {
+        return metrics.nonexistentDbLoadCount();
+    }
+
+    /**
+     * 清空 DB QPS 峰值，用于压测开始前
+     */
+    public void resetPeakDbQps() {
+        peakDbQps.set(0);
+    }
+
+    /**
+     * 当前存储格式下所有城市占用的 Redis 内存，通过对每个 key 执行 MEMORY USAGE 统计
+     */
+    public Map<String, Object> storage() {
+        Collection<String> keys = cityStore.keys(maxCityId.get());
+        List<CompletableFuture<Long>> usages = keys.stream().map(this::memoryUsage).collect(Collectors.toList());
+        long bytes = usages.stream().map(CompletableFuture::join).mapToLong(usage -> usage == null ? 0 : usage).sum();
+        Map<String, Object> storage = new LinkedHashMap<>();
+        storage.put("format", cityStore.format());
+        storage.put("keys", keys.size());
+        storage.put("memoryBytes", bytes);
+        storage.put("bytesPerCity", (double) bytes / maxCityId.get());
+        return storage;
+    }
+
+    /**
+     * spring-data-redis 和 Lettuce 5.1 都没有封装 MEMORY USAGE，通过 dispatch 发送原始命令；SAMPLES 0 统计 hash 的全部元素
+     */
+    private CompletableFuture<Long> memoryUsage(String key) {
+        CommandArgs<byte[], byte[]> args = new CommandArgs<>(ByteArrayCodec.INSTANCE)
+                .add("USAGE").addKey(key.getBytes(StandardCharsets.UTF_8)).add("SAMPLES").add(0);
+        return this.asyncCommands().dispatch(MEMORY, new IntegerOutput<>(ByteArrayCodec.INSTANCE), args).toCompletableFuture();
+    }
+
+    /**
+     * 缓存链路的全部监控指标
+     */
+    public Map<String, Object> metrics() {
+        Map<String, Object> snapshot = metrics.snapshot();
+        Map<String, Object> gauges = new LinkedHashMap<>();
+        gauges.put("dbQps", dbQps);
+        gauges.put("peakDbQps", peakDbQps.get());
+        gauges.put("coalescedLoads", singleFlight.coalescedCount());
+        if (hotKeyDetector != null) {
+            gauges.put("hotKeys", hotKeyDetector.hotKeys().size());
+        }
+        if (nearCache != null) {
+            gauges.put("l1Evictions", nearCache.evictionCount());
+            gauges.put("l1Rejections", nearCache.rejectionCount());
+        }
+        snapshot.put("gauges", gauges);
+        return snapshot;
+    }
+
+    private void cacheCity(int cityId, String data) {
+        long timeout = this.cacheTimeout();
+        cityStore.set(cityId, data, timeout);
+        this.afterCached(cityId, data, timeout);
+    }
+
+    /**
+     * 通过一次 pipeline 把一批城市写入 Redis
+     */
+    private void cacheCities(Map<Integer, String> cities) {
+        if (cities.isEmpty()) {
+            return;
+        }
+        Map<Integer, Long> timeouts = new HashMap<>();
+        cities.keySet().forEach(cityId -> timeouts.put(cityId, this.cacheTimeout()));
+        cityStore.setAll(cities, timeouts);
+        cities.forEach((cityId, data) -> this.afterCached(cityId, data, timeouts.get(cityId)));
+    }
+
+    /**
+     * 为不存在的 id 写入短过期时间的空值，不安排提前刷新
+     */
+    private void cacheNullValues(List<Integer> cityIds) {
+        if (!penetrationGuardEnabled || cityIds.isEmpty()) {
+            return;
+        }
+        Map<Integer, String> nullValues = new HashMap<>();
+        Map<Integer, Long> timeouts = new HashMap<>();
+        cityIds.forEach(cityId -> {
+            nullValues.put(cityId, NULL_VALUE);
+            timeouts.put(cityId, NULL_VALUE_TIMEOUT);
+        });
+        cityStore.setAll(nullValues, timeouts);
+        if (nearCache != null) {
+            cityIds.forEach(cityId -> nearCache.put(CACHE_KEY_PREFIX + cityId, NULL_VALUE));
+        }
+    }
+
+    /**
+     * 防雪崩模式下过期时间加上随机抖动
+     */
+    private long cacheTimeout() {
+        return antiAvalanche ? CACHE_TIMEOUT + ThreadLocalRandom.current().nextLong(CACHE_TIMEOUT_JITTER + 1) : CACHE_TIMEOUT;
+    }
+
+    private void afterCached(int cityId, String data, long timeout) {
+        if (nearCache != null) {
+            nearCache.put(CACHE_KEY_PREFIX + cityId, data);
+        }
+        this.pushToHotReplica(cityId, data);
+        if (antiAvalanche) {
+            this.scheduleRefresh(cityId, timeout - REFRESH_AHEAD_SECONDS);
+        }
+    }
+
+    /**
+     * 安排在 delaySeconds 秒后刷新 key，替换掉这个 key 之前的刷新任务
+     */
+    private void scheduleRefresh(int cityId, long delaySeconds) {
+        RefreshTask task = new RefreshTask(cityId);
+        RefreshTask previous = refreshTasks.put(cityId, task);
+        if (previous != null) {
+            previous.cancel();
+        }
+        task.future = refreshScheduler.schedule(task, delaySeconds, TimeUnit.SECONDS);
+    }
+
+    private void markAccessed(int cityId) {
+        if (!antiAvalanche) {
+            return;
+        }
+        RefreshTask task = refreshTasks.get(cityId);
+        if (task != null) {
+            task.accessed = true;
+        }
+    }
+
     private String getCityFromDb(Integer cityId) {
-        atomicInteger.incrementAndGet();
-        return "cityData" + RandomStringUtils.randomAlphabetic(6);
+        long start = System.nanoTime();
+        try {
+            return this.existsInDb(cityId) ? "cityData" + RandomStringUtils.randomAlphabetic(6) : null;
+        } catch (RuntimeException e) {
+            metrics.recordDbLoadFailure();
+            throw e;
+        } finally {
+            metrics.recordDbLoad(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * 模拟一次 DB 批量查询（IN 查询）
+     */
+    private Map<Integer, String> getCitiesFromDb(List<Integer> cityIds) {
+        long start = System.nanoTime();
+        try {
+            Map<Integer, String> cities = new LinkedHashMap<>();
+            cityIds.stream().filter(this::existsInDb)
+                    .forEach(cityId -> cities.put(cityId, "cityData" + RandomStringUtils.randomAlphabetic(6)));
+            return cities;
+        } catch (RuntimeException e) {
+            metrics.recordDbLoadFailure();
+            throw e;
+        } finally {
+            metrics.recordDbLoad(System.nanoTime() - start);
+        }
+    }
+
+    private boolean existsInDb(int cityId) {
+        return cityId >= 1 && cityId <= maxCityId.get();
+    }
+
+    /**
+     * 提前刷新任务：只刷新上一个周期内被访问过的 key，没人访问的 key 就让它自然过期
+     */
+    private class RefreshTask implements Runnable {
+
+        private final int cityId;
+
+        private volatile boolean accessed;
+
+        private volatile boolean cancelled;
+
+        private volatile ScheduledFuture<?> future;
+
+        RefreshTask(int cityId) {
+            this.cityId = cityId;
+        }
+
+        @Override
+        public void run() {
+            if (cancelled) {
+                return;
+            }
+            if (!accessed) {
+                refreshTasks.remove(cityId, this);
+                return;
+            }
+            try {
+                loadFromDbAndCache(cityId);
+            } catch (Exception e) {
+                log.error("refresh city {} error ", cityId, e);
+            }
+        }
+
+        void cancel() {
+            cancelled = true;
+            ScheduledFuture<?> f = future;
+            if (f != null) {
+                f.cancel(false);
+            }
+        }
     }
 
 }
@@ -1,19 +1,33 @@
 package org.geekbang.time.commonmistakes.cachedesign.cacheinvalid;
 
 import lombok.extern.slf4j.Slf4j;
+import org.geekbang.time.commonmistakes.common.ZipfianGenerator;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.CommandLineRunner;
+import org.springframework.context.ApplicationContext;
 import org.springframework.stereotype.Component;
-import org.springframework.web.client.RestTemplate;
+import org.springframework.util.Assert;
+import org.springframework.util.ReflectionUtils;
 
-import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.lang.reflect.Method;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.IntStream;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 /**
- * 模拟压测工具 wrk，对功能 org.geekbang.time.commonmistakes.cachedesign.cacheinvalid.CacheInvalidService#city() 发起压力测试
+ * 模拟压测工具 wrk，对 CacheInvalidService 发起压力测试
+ * <p>
+ *     压测参数见 StressTestProperties（cacheinvalid.stress.*），默认压测 city()，请求中混入一定比例不存在的城市 id；
+ *     也可以通过 target 指定 cities 或者任意 bean 的无参方法。压测在后台执行，结束后输出吞吐量和延迟分位数，校验 DB 压力和新增城市。
+ * </p>
+ * <p>
+ *     线程池模式下同时在途的请求数受线程数限制，connections 大于 threads 时多个连接轮流共用一个线程；
+ *     ASYNC 模式下连接只是逻辑客户端，通过 cityAsync() 走 Lettuce 的异步 API，可以用很少的线程模拟成千上万的并发连接。
+ * </p>
  */
 @Slf4j
 @Component
@@ -22,78 +36,140 @@ public class CacheInvalidStressTest implements CommandLineRunner {
     @Autowired
     private CacheInvalidService cacheInvalidService;
 
-    /** 线程数 */
-    private static final int THREAD_COUNT = 5;
+    @Autowired
+    private StressTestProperties properties;
 
-    /** 并发数（连接数） */
-    private static final int CONCURRENT_REQUESTS = 8;
+    @Autowired
+    private ApplicationContext applicationContext;
 
-    /** 压测持续时间 */
-    private static final int DURATION_SECONDS = 30;
+    /** 不存在的 id 回源 DB 的次数，最多只能占它们请求数的这个比例 */
+    private static final double MAX_NONEXISTENT_LOAD_RATIO = 0.01;
 
     @Override
     public void run(String... args) throws Exception {
-        log.info("Stress test start");
-        ExecutorService executorService = Executors.newFixedThreadPool(THREAD_COUNT);
-
-        /**
-         * 当连接数 CONCURRENT_REQUESTS 大于最大线程数 THREAD_COUNT 时，
-         * 因为压测会持续 DURATION_SECONDS 秒，所以会有（CONCURRENT_REQUESTS - DURATION_SECONDS）个连接进入线程池的等待队列中
-         * 直到 DURATION_SECONDS 秒后有空闲线程时，等待队列的连接才能获取线程去执行任务
-         * 所以所有连接任务执行完毕耗时 (CONCURRENT_REQUESTS 除以 THREAD_COUNT) 的商向上取整 的时间
-         */
-        IntStream.rangeClosed(1, CONCURRENT_REQUESTS).forEach(i -> {
-            log.info("request id {}", i);
-            executorService.execute(() -> {
-                log.info("request {} start execute", i);
-                LocalDateTime endTime = LocalDateTime.now().plusSeconds(DURATION_SECONDS);
-                do {
-                    try {
-                        String response = cacheInvalidService.city();
-                    } catch (Exception e) {
-                        log.error("request {} error ", i, e);
-                    }
-                } while (LocalDateTime.now().isBefore(endTime));
-                log.info("request {} end execute", i);
-            });
+        if (!properties.isEnabled()) {
+            log.info("Stress test disabled");
+            return;
+        }
+        LongAdder invalidRequests = new LongAdder();
+        boolean async = properties.getMode() == LoadGenerator.Mode.ASYNC;
+        Runnable target = async ? null : this.resolveTarget(properties.getTarget(), invalidRequests);
+        Supplier<CompletableFuture<String>> asyncTarget = async ? this.resolveAsyncTarget(properties.getTarget(), invalidRequests) : null;
+        LoadGenerator loadGenerator = new LoadGenerator(properties.getThreads(), properties.getConnections(),
+                properties.getDurationSeconds(), properties.getMode(), properties.getRate(),
+                TimeUnit.MICROSECONDS.toNanos(properties.getExpectedIntervalMicros()));
+
+        log.info("Stress test start, target: {}, {}", properties.getTarget(), properties);
+        cacheInvalidService.resetPeakDbQps();
+        long dbLoadsBefore = cacheInvalidService.dbLoadCount();
+        long nonexistentLoadsBefore = cacheInvalidService.nonexistentDbLoadCount();
+
+        // 压测在后台执行，不阻塞应用启动
+        CompletableFuture.runAsync(() -> {
+            try {
+                LoadGenerator.Report report = async ? loadGenerator.runAsync(asyncTarget) : loadGenerator.run(target);
+                log.info("Stress test report:\n{}", report.format());
+                Assert.isTrue(report.getIdleConnections() == 0, report.getIdleConnections() + " of "
+                        + properties.getConnections() + " connections sent no request");
+                this.verifyDbQps(dbLoadsBefore, nonexistentLoadsBefore, invalidRequests, (long) report.getElapsedSeconds());
+                this.verifyAddCity();
+                log.info("Redis storage after stress test: {}", cacheInvalidService.storage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }).whenComplete((result, e) -> {
+            // 后台任务的异常不会抛给任何调用者，校验失败时必须在这里输出
+            if (e != null) {
+                log.error("Stress test failed", e);
+            }
         });
-
-        executorService.shutdown();
-
-        //int awaitSeconds = divideWithCeil(CONCURRENT_REQUESTS, THREAD_COUNT) * DURATION_SECONDS;
-        //log.info("即将关闭线程池，主线程等待所有任务完成后或 {} 时间后退出，Stress test will exit ", awaitSeconds);
-
-        // awaitSeconds + 3 是为了在给出 3 秒的余量
-
-        /**
-         * executorService.shutdown() 只是通知线程池关闭；并不是立刻关闭线程池，所以不影响线程池中已提交的任务的执行
-         * executorService.awaitTermination() 只是设置让主线程等待退出；就算主线程立即退出，也不影响线程池中已提交的任务的执行
-         */
-        //boolean b = executorService.awaitTermination( awaitSeconds + 3, TimeUnit.SECONDS);
-        //log.info("Stress test completed. {}", b);
-
     }
 
     /**
-     * 实现除法并向上取整
-     * @param dividend
-     * @param divisor
-     * @return
+     * 把配置的压测目标解析成一次请求
      */
-    public static int divideWithCeil(int dividend, int divisor) {
-        if (divisor == 0) {
-            throw new IllegalArgumentException("除数不能为0");
+    private Runnable resolveTarget(String target, LongAdder invalidRequests) {
+        if ("city".equals(target)) {
+            IntSupplier cityId = this.cityIdGenerator();
+            return () -> {
+                if (ThreadLocalRandom.current().nextDouble() < properties.getInvalidIdRatio()) {
+                    invalidRequests.increment();
+                    cacheInvalidService.city(-1 - ThreadLocalRandom.current().nextInt(properties.getInvalidIdSpace()));
+                } else {
+                    cacheInvalidService.city(cityId.getAsInt());
+                }
+            };
+        }
+        if ("cities".equals(target)) {
+            return () -> cacheInvalidService.cities(ThreadLocalRandom.current()
+                    .ints(properties.getBatchSize(), 1, CacheInvalidService.CITY_COUNT + 1).boxed().collect(Collectors.toList()));
+        }
+        String[] beanAndMethod = target.split("#");
+        if (beanAndMethod.length != 2) {
+            throw new IllegalArgumentException("压测目标 " + target + " 不是 city、cities 或 beanName#methodName");
         }
+        Object bean = applicationContext.getBean(beanAndMethod[0]);
+        Method method = ReflectionUtils.findMethod(bean.getClass(), beanAndMethod[1]);
+        if (method == null) {
+            throw new IllegalArgumentException("压测目标 " + target + " 没有对应的无参方法");
+        }
+        return () -> ReflectionUtils.invokeMethod(method, bean);
+    }
 
-        // 计算商
-        int quotient = dividend / divisor;
+    /**
+     * ASYNC 模式下的压测目标，目前只支持 city
+     */
+    private Supplier<CompletableFuture<String>> resolveAsyncTarget(String target, LongAdder invalidRequests) {
+        if (!"city".equals(target)) {
+            throw new IllegalArgumentException("ASYNC 模式只支持压测 city，不支持 " + target);
+        }
+        IntSupplier cityId = this.cityIdGenerator();
+        return () -> {
+            if (ThreadLocalRandom.current().nextDouble() < properties.getInvalidIdRatio()) {
+                invalidRequests.increment();
+                return cacheInvalidService.cityAsync(-1 - ThreadLocalRandom.current().nextInt(properties.getInvalidIdSpace()));
+            }
+            return cacheInvalidService.cityAsync(cityId.getAsInt());
+        };
+    }
 
-        // 判断是否有余数，如果有余数则商加1，否则不变
-        if (dividend % divisor != 0) {
-            quotient++;
+    /**
+     * 按配置的分布生成存在的城市 id（1 到 CITY_COUNT）
+     */
+    private IntSupplier cityIdGenerator() {
+        if (properties.getKeyDistribution() == StressTestProperties.KeyDistribution.ZIPF) {
+            ZipfianGenerator zipfian = new ZipfianGenerator(CacheInvalidService.CITY_COUNT, properties.getZipfExponent());
+            return () -> zipfian.next() + 1;
         }
+        return () -> ThreadLocalRandom.current().nextInt(CacheInvalidService.CITY_COUNT) + 1;
+    }
 
-        return quotient;
+    /**
+     * 校验压测期间的 DB 压力，不满足时抛出 IllegalArgumentException：开启 single-flight 后，每个 key 每次过期最多回源一次，
+     * 所以 DB 总访问次数不会超过 key 总数乘以经历的缓存周期数；开启防缓存穿透后，不存在的 id 绝大部分被布隆过滤器拦截，几乎不会回源。
+     * DB QPS 峰值只输出不校验，并发请求合并为一次回源由 SingleFlightTest 验证
+     */
+    private void verifyDbQps(long dbLoadsBefore, long nonexistentLoadsBefore, LongAdder invalidRequests, long elapsedSeconds) {
+        long nonexistentLoads = cacheInvalidService.nonexistentDbLoadCount() - nonexistentLoadsBefore;
+        long dbLoads = cacheInvalidService.dbLoadCount() - dbLoadsBefore - nonexistentLoads;
+        long dbLoadBudget = cacheInvalidService.dbLoadBudget(elapsedSeconds);
+        long peakDbQps = cacheInvalidService.peakDbQps();
+        long invalidRequestCount = invalidRequests.sum();
+        log.info("Stress test completed in {}s, DB loads: {} (budget {}), peak DB QPS: {}, nonexistent id requests: {}, nonexistent id DB loads: {}",
+                elapsedSeconds, dbLoads, dbLoadBudget, peakDbQps, invalidRequestCount, nonexistentLoads);
+        Assert.isTrue(dbLoads <= dbLoadBudget, "DB loads " + dbLoads + " exceed budget " + dbLoadBudget);
+        Assert.isTrue(nonexistentLoads <= invalidRequestCount * MAX_NONEXISTENT_LOAD_RATIO,
+                "nonexistent id DB loads " + nonexistentLoads + " exceed " + MAX_NONEXISTENT_LOAD_RATIO + " of " + invalidRequestCount + " requests");
+        log.info("Stress test DB QPS verification passed");
+    }
+
+    /**
+     * 校验新增城市：布隆过滤器是启动时按已有城市构建的，新城市必须通过 addCity() 加入过滤器，否则会被当成不存在的 id 拦截
+     */
+    private void verifyAddCity() {
+        int cityId = cacheInvalidService.addCity();
+        Assert.notNull(cacheInvalidService.city(cityId), "new city " + cityId + " not found after addCity");
+        log.info("Stress test add city verification passed, new city id: {}", cityId);
     }
 
 }
@@ -0,0 +1,117 @@
+package org.geekbang.time.commonmistakes.cachedesign.cacheinvalid;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * city() 缓存链路的监控指标
+ * <p>
+ *     计数器使用 LongAdder（内部按线程分段累加，高并发下不会争抢同一个变量），延迟使用 LatencyHistogram，
+ *     所有 record 方法都不分配对象，可以在生产环境的热点路径上一直开着。
+ * </p>
+ */
+public class CacheMetrics {
+
+    private final LongAdder hotReplicaHits = new LongAdder();
+
+    private final LongAdder l1Hits = new LongAdder();
+
+    private final LongAdder l1Misses = new LongAdder();
+
+    private final LongAdder l2Hits = new LongAdder();
+
+    private final LongAdder l2Misses = new LongAdder();
+
+    private final LongAdder dbLoads = new LongAdder();
+
+    private final LongAdder dbLoadFailures = new LongAdder();
+
+    private final LongAdder nonexistentDbLoads = new LongAdder();
+
+    private final LongAdder bloomRejected = new LongAdder();
+
+    private final LongAdder nullValueHits = new LongAdder();
+
+    private final LatencyHistogram redisGetLatency = new LatencyHistogram();
+
+    private final LatencyHistogram dbLoadLatency = new LatencyHistogram();
+
+    public void recordHotReplicaHit() {
+        hotReplicaHits.increment();
+    }
+
+    public void recordL1(boolean hit) {
+        (hit ? l1Hits : l1Misses).increment();
+    }
+
+    public void recordL2(boolean hit) {
+        (hit ? l2Hits : l2Misses).increment();
+    }
+
+    public void recordRedisGet(long nanos) {
+        redisGetLatency.recordNanos(nanos);
+    }
+
+    public void recordDbLoad(long nanos) {
+        dbLoads.increment();
+        dbLoadLatency.recordNanos(nanos);
+    }
+
+    public void recordDbLoadFailure() {
+        dbLoadFailures.increment();
+    }
+
+    public void recordNonexistentDbLoads(long count) {
+        nonexistentDbLoads.add(count);
+    }
+
+    public void recordBloomRejected() {
+        bloomRejected.increment();
+    }
+
+    public void recordNullValueHit() {
+        nullValueHits.increment();
+    }
+
+    public long dbLoadCount() {
+        return dbLoads.sum();
+    }
+
+    public long nonexistentDbLoadCount() {
+        return nonexistentDbLoads.sum();
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Object> counters = new LinkedHashMap<>();
+        counters.put("hotReplicaHits", hotReplicaHits.sum());
+        counters.put("l1Hits", l1Hits.sum());
+        counters.put("l1Misses", l1Misses.sum());
+        counters.put("l2Hits", l2Hits.sum());
+        counters.put("l2Misses", l2Misses.sum());
+        counters.put("dbLoads", dbLoads.sum());
+        counters.put("dbLoadFailures", dbLoadFailures.sum());
+        counters.put("nonexistentDbLoads", nonexistentDbLoads.sum());
+        counters.put("bloomRejected", bloomRejected.sum());
+        counters.put("nullValueHits", nullValueHits.sum());
+
+        Map<String, Object> hitRatios = new LinkedHashMap<>();
+        hitRatios.put("l1", ratio(l1Hits.sum(), l1Misses.sum()));
+        hitRatios.put("l2", ratio(l2Hits.sum(), l2Misses.sum()));
+
+        Map<String, Object> latencies = new LinkedHashMap<>();
+        latencies.put("redisGet", redisGetLatency.snapshot());
+        latencies.put("dbLoad", dbLoadLatency.snapshot());
+
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("counters", counters);
+        snapshot.put("hitRatios", hitRatios);
+        snapshot.put("latencies", latencies);
+        return snapshot;
+    }
+
+    private static double ratio(long hits, long misses) {
+        long total = hits + misses;
+        return total == 0 ? 0 : Math.round((double) hits / total * 10000) / 10000.0;
+    }
+}
@@ -0,0 +1,52 @@
+package org.geekbang.time.commonmistakes.cachedesign.cacheinvalid;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 城市数据在 Redis 中的存储格式，CacheInvalidService 只通过这个接口读写 Redis
+ * <p>
+ *     空值（NULL_VALUE）和普通数据一样存取，get 返回 null 表示缓存中没有这个城市（或者已经过期）。
+ * </p>
+ */
+public interface CityStore {
+
+    enum Format {
+        /** 每个城市一个 string key，过期时间由 Redis 管理 */
+        STRING,
+        /** 多个城市打包进一个 hash，见 HashBucketCityStore */
+        HASH_BUCKET
+    }
+
+    Format format();
+
+    String get(int cityId);
+
+    /**
+     * 通过 Lettuce 的异步 API 查询，不占用调用线程
+     */
+    CompletableFuture<String> getAsync(int cityId);
+
+    /**
+     * 批量查询，结果与 cityIds 一一对应
+     */
+    List<String> multiGet(List<Integer> cityIds);
+
+    void set(int cityId, String data, long timeoutSeconds);
+
+    /**
+     * 通过一次 pipeline 写入一批城市
+     *
+     * @param timeouts 每个城市的过期时间（秒）
+     */
+    void setAll(Map<Integer, String> cities, Map<Integer, Long> timeouts);
+
+    void delete(int cityId);
+
+    /**
+     * 城市 1 到 maxCityId 在 Redis 中对应的 key，用来统计内存占用
+     */
+    Collection<String> keys(int maxCityId);
+}
@@ -0,0 +1,93 @@
+package org.geekbang.time.commonmistakes.cachedesign.cacheinvalid;
+
+/**
+ * Count-Min Sketch：用一个固定大小的二维计数器数组估算 key 的出现频率，估算值只会偏大不会偏小
+ * <p>
+ *     累计计数达到 sampleSize 后，所有计数器减半（衰减），让过去的热点逐渐“冷却”，频率反映的是最近一段时间的访问情况。<br>
+ *     increment 和 reset 持有同一把锁，计数和衰减不会互相覆盖；调用方应该先采样再 increment（见 HotKeyDetector、NearCache），
+ *     锁的竞争因此很小。frequency 不加锁，可能读到正在更新的计数，这对频率估算来说是可以接受的。
+ * </p>
+ */
+public class CountMinSketch {
+
+    /** 哈希函数个数（行数） */
+    private static final int DEPTH = 4;
+
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+
+    /** DEPTH 行计数器依次排列在一个数组中 */
+    private final int[] table;
+
+    private final int widthMask;
+
+    private final int sampleSize;
+
+    private int additions;
+
+    /**
+     * @param width      每一行的计数器个数，会向上取整为 2 的幂
+     * @param sampleSize 累计计数达到这个值时进行一次衰减
+     */
+    public CountMinSketch(int width, int sampleSize) {
+        if (width <= 0 || sampleSize <= 0) {
+            throw new IllegalArgumentException("width 和 sampleSize 必须大于 0");
+        }
+        int w = Integer.highestOneBit(width);
+        if (w < width) {
+            w <<= 1;
+        }
+        this.table = new int[DEPTH * w];
+        this.widthMask = w - 1;
+        this.sampleSize = sampleSize;
+    }
+
+    /**
+     * 记录一次 key 的出现
+     */
+    public synchronized void increment(Object key) {
+        int hash = spread(key.hashCode());
+        for (int i = 0; i < DEPTH; i++) {
+            table[indexOf(hash, i)]++;
+        }
+        if (++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * 估算 key 的出现频率，取各行计数的最小值
+     */
+    public int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < DEPTH; i++) {
+            frequency = Math.min(frequency, table[indexOf(hash, i)]);
+        }
+        return frequency;
+    }
+
+    /**
+     * 所有计数器减半
+     */
+    public synchronized void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] >>>= 1;
+        }
+        additions = 0;
+    }
+
+    private int indexOf(int hash, int row) {
+        long h = (hash + SEEDS[row]) * SEEDS[row];
+        h ^= h >>> 32;
+        return row * (widthMask + 1) + ((int) h & widthMask);
+    }
+
+    private static int spread(int hash) {
+        hash ^= hash >>> 17;
+        hash *= 0xed5ad4bb;
+        hash ^= hash >>> 11;
+        return hash;
+    }
+}
@@ -0,0 +1,191 @@
+package org.geekbang.time.commonmistakes.cachedesign.cacheinvalid;
+
+import io.lettuce.core.cluster.api.async.RedisClusterAsyncCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * 把 bucketSize 个相邻的城市打包进一个 hash（cityb + id / bucketSize），field 是 id % bucketSize
+ * <p>
+ *     bucketSize 不超过 hash-max-ziplist-entries（默认 128）、value 不超过 hash-max-ziplist-value（默认 64 字节）时，
+ *     Redis 用紧凑的 ziplist 编码保存 hash，一百个城市只有一个 key 的固定开销，内存占用只有 string 格式的几分之一。
+ * </p>
+ * <p>
+ *     hash 的 field 不能单独设置过期时间，所以每个 value 的开头用 varint 记录自己的逻辑过期时间（秒），
+ *     读到已经过期的 value 按未命中处理，之后回源时直接覆盖；
+ *     bucket 本身在每次写入时把过期时间续到 bucketTimeoutSeconds（不小于任何一个 value 的过期时间），
+ *     一个 bucket 里所有城市都不再被写入时，整个 bucket 由 Redis 过期删除。
+ * </p>
+ */
+public class HashBucketCityStore implements CityStore {
+
+    private static final String BUCKET_KEY_PREFIX = "cityb";
+
+    /** 逻辑过期时间相对于 2024-01-01 00:00:00 UTC 的秒数，varint 编码只需要 4 个字节 */
+    private static final long EPOCH_SECONDS = 1704067200L;
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final Supplier<RedisClusterAsyncCommands<byte[], byte[]>> asyncCommands;
+
+    private final int bucketSize;
+
+    private final long bucketTimeoutSeconds;
+
+    /**
+     * @param bucketSize           每个 hash 中的城市数量
+     * @param bucketTimeoutSeconds bucket 的过期时间，必须不小于任何一个城市的过期时间
+     */
+    public HashBucketCityStore(StringRedisTemplate stringRedisTemplate, Supplier<RedisClusterAsyncCommands<byte[], byte[]>> asyncCommands,
+                               int bucketSize, long bucketTimeoutSeconds) {
+        if (bucketSize <= 0 || bucketTimeoutSeconds <= 0) {
+            throw new IllegalArgumentException("bucketSize 和 bucketTimeoutSeconds 必须大于 0");
+        }
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.asyncCommands = asyncCommands;
+        this.bucketSize = bucketSize;
+        this.bucketTimeoutSeconds = bucketTimeoutSeconds;
+    }
+
+    @Override
+    public Format format() {
+        return Format.HASH_BUCKET;
+    }
+
+    @Override
+    public String get(int cityId) {
+        byte[] value = stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.hGet(bucketKey(cityId), field(cityId)));
+        return decode(value);
+    }
+
+    @Override
+    public CompletableFuture<String> getAsync(int cityId) {
+        return asyncCommands.get().hget(bucketKey(cityId), field(cityId)).toCompletableFuture().thenApply(HashBucketCityStore::decode);
+    }
+
+    /**
+     * 同一个 bucket 的城市合并成一条 HMGET，所有 HMGET 通过一次 pipeline 发出
+     */
+    @Override
+    public List<String> multiGet(List<Integer> cityIds) {
+        Map<Integer, List<Integer>> idsByBucket = cityIds.stream()
+                .collect(Collectors.groupingBy(this::bucket, LinkedHashMap::new, Collectors.toList()));
+        List<Object> replies = stringRedisTemplate.execute((RedisCallback<List<Object>>) connection -> {
+            connection.openPipeline();
+            idsByBucket.values().forEach(ids -> connection.hMGet(bucketKey(ids.get(0)),
+                    ids.stream().map(this::field).toArray(byte[][]::new)));
+            return connection.closePipeline();
+        });
+        Map<Integer, String> values = new LinkedHashMap<>();
+        int reply = 0;
+        for (List<Integer> ids : idsByBucket.values()) {
+            List<?> bucketValues = replies == null ? Collections.emptyList() : (List<?>) replies.get(reply++);
+            for (int i = 0; i < ids.size(); i++) {
+                values.put(ids.get(i), i < bucketValues.size() ? decode((byte[]) bucketValues.get(i)) : null);
+            }
+        }
+        return cityIds.stream().map(values::get).collect(Collectors.toList());
+    }
+
+    @Override
+    public void set(int cityId, String data, long timeoutSeconds) {
+        this.setAll(Collections.singletonMap(cityId, data), Collections.singletonMap(cityId, timeoutSeconds));
+    }
+
+    /**
+     * 通过一次 pipeline 执行所有的 HSET，每个涉及的 bucket 再续一次过期时间
+     */
+    @Override
+    public void setAll(Map<Integer, String> cities, Map<Integer, Long> timeouts) {
+        if (cities.isEmpty()) {
+            return;
+        }
+        long nowSeconds = System.currentTimeMillis() / 1000;
+        Set<Integer> buckets = new LinkedHashSet<>();
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            connection.openPipeline();
+            cities.forEach((cityId, data) -> {
+                connection.hSet(bucketKey(cityId), field(cityId), encode(nowSeconds + timeouts.get(cityId), data));
+                buckets.add(bucket(cityId));
+            });
+            buckets.forEach(bucket -> connection.expire(bucketKey(bucket * bucketSize), bucketTimeoutSeconds));
+            connection.closePipeline();
+            return null;
+        });
+    }
+
+    @Override
+    public void delete(int cityId) {
+        stringRedisTemplate.execute((RedisCallback<Long>) connection -> connection.hDel(bucketKey(cityId), field(cityId)));
+    }
+
+    @Override
+    public Collection<String> keys(int maxCityId) {
+        return IntStream.rangeClosed(bucket(1), bucket(maxCityId)).mapToObj(bucket -> BUCKET_KEY_PREFIX + bucket)
+                .collect(Collectors.toList());
+    }
+
+    private int bucket(int cityId) {
+        return Math.floorDiv(cityId, bucketSize);
+    }
+
+    private byte[] bucketKey(int cityId) {
+        return (BUCKET_KEY_PREFIX + bucket(cityId)).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] field(int cityId) {
+        return Integer.toString(Math.floorMod(cityId, bucketSize)).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * value 格式：varint(逻辑过期时间 - EPOCH_SECONDS) + UTF-8 编码的城市数据
+     */
+    static byte[] encode(long expireAtSeconds, String data) {
+        byte[] bytes = data.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length + 5);
+        long value = Math.max(0, expireAtSeconds - EPOCH_SECONDS);
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+        out.write(bytes, 0, bytes.length);
+        return out.toByteArray();
+    }
+
+    /**
+     * 解码 value，逻辑上已经过期的返回 null
+     */
+    static String decode(byte[] value) {
+        if (value == null) {
+            return null;
+        }
+        long expireAt = 0;
+        int position = 0;
+        for (int shift = 0; position < value.length; shift += 7) {
+            byte b = value[position++];
+            expireAt |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        if (EPOCH_SECONDS + expireAt <= System.currentTimeMillis() / 1000) {
+            return null;
+        }
+        return new String(value, position, value.length - position, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,95 @@
+package org.geekbang.time.commonmistakes.cachedesign.cacheinvalid;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 热点 key 探测
+ * <p>
+ *     每 sampleRate 次访问只采样 1 次，采样到的 key 记入 CountMinSketch，开销只有一次随机数和几次数组自增。
+ *     sketch 每累计 windowSamples 次采样就把所有计数减半，所以估算的频率反映的是最近的访问情况。<br>
+ *     key 的采样次数在窗口中的占比超过 thresholdRatio 时被认为是热点；
+ *     sweep() 会把频率降到阈值一半以下的 key 移出热点集合，一半的回差避免 key 在阈值附近反复进出。
+ * </p>
+ */
+public class HotKeyDetector<K> {
+
+    private final int sampleRate;
+
+    private final int threshold;
+
+    private final CountMinSketch sketch;
+
+    /** 热点 key 和它被识别为热点的时间 */
+    private final Map<K, Long> hotKeys = new ConcurrentHashMap<>();
+
+    /**
+     * @param sampleRate     每多少次访问采样一次
+     * @param windowSamples  衰减窗口内的采样次数
+     * @param thresholdRatio 一个 key 的采样次数占窗口的比例超过这个值即为热点，例如 0.01
+     */
+    public HotKeyDetector(int sampleRate, int windowSamples, double thresholdRatio) {
+        if (sampleRate <= 0 || windowSamples <= 0 || thresholdRatio <= 0 || thresholdRatio >= 1) {
+            throw new IllegalArgumentException("sampleRate、windowSamples 必须大于 0，thresholdRatio 必须在 (0, 1) 之间");
+        }
+        this.sampleRate = sampleRate;
+        // 减半衰减后计数在 [threshold / 2, threshold] 之间波动，取窗口比例的一半作为阈值
+        this.threshold = Math.max(1, (int) (windowSamples * thresholdRatio / 2));
+        this.sketch = new CountMinSketch(Math.max(16, (int) (4 / thresholdRatio)), windowSamples);
+    }
+
+    /**
+     * 记录一次访问
+     *
+     * @return key 是否是热点
+     */
+    public boolean record(K key) {
+        if (sampleRate > 1 && ThreadLocalRandom.current().nextInt(sampleRate) != 0) {
+            return hotKeys.containsKey(key);
+        }
+        sketch.increment(key);
+        if (hotKeys.containsKey(key)) {
+            return true;
+        }
+        if (sketch.frequency(key) >= threshold) {
+            hotKeys.putIfAbsent(key, System.currentTimeMillis());
+            return true;
+        }
+        return false;
+    }
+
+    public boolean isHot(K key) {
+        return hotKeys.containsKey(key);
+    }
+
+    public int frequency(K key) {
+        return sketch.frequency(key);
+    }
+
+    /**
+     * 当前的热点 key
+     */
+    public Map<K, Long> hotKeys() {
+        return Collections.unmodifiableMap(hotKeys);
+    }
+
+    /**
+     * 把已经冷却的 key 移出热点集合
+     *
+     * @return 被移出的 key
+     */
+    public Set<K> sweep() {
+        Set<K> demoted = ConcurrentHashMap.newKeySet();
+        hotKeys.keySet().removeIf(key -> {
+            boolean cold = sketch.frequency(key) < threshold / 2;
+            if (cold) {
+                demoted.add(key);
+            }
+            return cold;
+        });
+        return demoted;
+    }
+}
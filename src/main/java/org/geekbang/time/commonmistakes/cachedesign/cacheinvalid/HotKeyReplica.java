@@ -0,0 +1,61 @@
+package org.geekbang.time.commonmistakes.cachedesign.cacheinvalid;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 热点 key 在本地的副本
+ * <p>
+ *     只存放 HotKeyDetector 识别出来的少量热点 key，过期时间很短；
+ *     由后台定时从 Redis 批量拉取最新值推送进来（以及每次写 Redis 时同步推送），热点 key 在变冷之前不会过期，
+ *     读取热点 key 完全不需要访问 Redis，也就不会把压力集中到某一个 Redis 分片上。
+ * </p>
+ */
+public class HotKeyReplica<K, V> {
+
+    private final ConcurrentMap<K, Entry<V>> entries = new ConcurrentHashMap<>();
+
+    private final long ttlNanos;
+
+    public HotKeyReplica(long ttl, TimeUnit unit) {
+        this.ttlNanos = unit.toNanos(ttl);
+    }
+
+    public V get(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expireAtNanos - System.nanoTime() <= 0) {
+            entries.remove(key, entry);
+            return null;
+        }
+        return entry.value;
+    }
+
+    public void put(K key, V value) {
+        entries.put(key, new Entry<>(value, System.nanoTime() + ttlNanos));
+    }
+
+    public void remove(K key) {
+        entries.remove(key);
+    }
+
+    public Set<K> keys() {
+        return entries.keySet();
+    }
+
+    private static class Entry<V> {
+
+        private final V value;
+
+        private final long expireAtNanos;
+
+        Entry(V value, long expireAtNanos) {
+            this.value = value;
+            this.expireAtNanos = expireAtNanos;
+        }
+    }
+}
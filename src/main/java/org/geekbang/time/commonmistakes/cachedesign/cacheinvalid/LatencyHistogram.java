@@ -0,0 +1,152 @@
+package org.geekbang.time.commonmistakes.cachedesign.cacheinvalid;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 延迟直方图（纳秒），用于计算 p50/p99/p999 等分位数
+ * <p>
+ *     桶按对数-线性划分：每个 2 的幂区间再等分成 16 个子桶，相对误差不超过 1/16，
+ *     所有的桶在构造时一次性分配好，record 只做数组下标计算和原子加，不分配任何对象，可以一直开着。
+ * </p>
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    /** 能精确记录的最大值约为 2^40 纳秒（约 18 分钟），更大的值计入最后一个桶 */
+    private static final int MAX_EXPONENT = 40;
+
+    private static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+
+    private final LongAdder count = new LongAdder();
+
+    private final LongAdder sum = new LongAdder();
+
+    private final AtomicLong max = new AtomicLong();
+
+    public void recordNanos(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        buckets.incrementAndGet(bucketIndex(nanos));
+        count.increment();
+        sum.add(nanos);
+        long currentMax;
+        while (nanos > (currentMax = max.get()) && !max.compareAndSet(currentMax, nanos)) {
+            // 并发更新最大值，失败后重试
+        }
+    }
+
+    /**
+     * 记录一次耗时，并补记因为这次请求太慢而没能按时发出的请求（coordinated omission 修正）
+     * <p>
+     *     压测客户端本应每隔 expectedIntervalNanos 发一个请求，一个慢请求会把后面的请求推迟，
+     *     这些请求如果不补记，分位数会被严重低估。做法与 HdrHistogram 的 recordValueWithExpectedInterval 一致：
+     *     依次补记 nanos - interval、nanos - 2 * interval …… 直到小于 interval。
+     * </p>
+     */
+    public void recordNanos(long nanos, long expectedIntervalNanos) {
+        recordNanos(nanos);
+        if (expectedIntervalNanos <= 0) {
+            return;
+        }
+        for (long missing = nanos - expectedIntervalNanos; missing >= expectedIntervalNanos; missing -= expectedIntervalNanos) {
+            recordNanos(missing);
+        }
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    public long maxNanos() {
+        return max.get();
+    }
+
+    public double meanNanos() {
+        long c = count.sum();
+        return c == 0 ? 0 : (double) sum.sum() / c;
+    }
+
+    /**
+     * 分位数对应的延迟（纳秒），返回所在桶的上界
+     *
+     * @param percentile 0 到 100 之间，例如 99.9
+     */
+    public long percentileNanos(double percentile) {
+        long total = 0;
+        long[] counts = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(bucketUpperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * 汇总结果，单位为微秒
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("count", count());
+        snapshot.put("meanMicros", toMicros((long) meanNanos()));
+        snapshot.put("p50Micros", toMicros(percentileNanos(50)));
+        snapshot.put("p99Micros", toMicros(percentileNanos(99)));
+        snapshot.put("p999Micros", toMicros(percentileNanos(99.9)));
+        snapshot.put("maxMicros", toMicros(maxNanos()));
+        return snapshot;
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets.set(i, 0);
+        }
+        count.reset();
+        sum.reset();
+        max.set(0);
+    }
+
+    private static double toMicros(long nanos) {
+        return Math.round(nanos / 100.0) / 10.0;
+    }
+
+    private static int bucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        int shift = exponent - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKET_COUNT + (int) ((value >>> shift) & (SUB_BUCKET_COUNT - 1));
+    }
+
+    private static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKET_COUNT - 1;
+        long subBucket = index % SUB_BUCKET_COUNT;
+        return ((SUB_BUCKET_COUNT + subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,379 @@
+package org.geekbang.time.commonmistakes.cachedesign.cacheinvalid;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * 模拟压测工具 wrk / wrk2 的压测引擎
+ * <ul>
+ *     <li>CLOSED_LOOP：每个连接发完一个请求马上发下一个，和 wrk 一样，吞吐量由被测系统决定。
+ *     connections 大于 threads 时由 threads 个线程各自轮流代表多个连接，同时在途的请求最多 threads 个；</li>
+ *     <li>CONSTANT_THROUGHPUT：每个连接按固定节奏发请求，所有连接合计每秒 rate 个请求，和 wrk2 一样。
+ *     延迟从请求“本应发出”的时间开始算，被测系统卡顿时排队等待的时间也会计入，不会被 coordinated omission 掩盖。
+ *     一个连接要独占一个线程，connections 大于 threads 时由 threads 个线程各自轮流代表多个连接，每个线程分担 rate / threads，
+ *     否则多出来的连接要等到压测结束才能拿到线程，实际吞吐量会悄悄低于 rate。</li>
+ *     <li>ASYNC：connections 个逻辑客户端各自异步地发请求，上一个请求完成后把发下一个请求的任务提交给 threads 个线程的线程池，
+ *     不需要为每个连接占用一个线程，几个线程就能模拟成千上万的并发连接。</li>
+ * </ul>
+ * 闭环模式下没有固定节奏，按 expectedIntervalNanos 补记被慢请求推迟的请求；没有配置时按 rate 推算预期间隔 同时在途的请求数 / rate，
+ * 其中 CLOSED_LOOP 同时在途的请求数是 min(connections, threads)，ASYNC 是 connections。
+ */
+@Slf4j
+public class LoadGenerator {
+
+    public enum Mode {
+        CLOSED_LOOP, CONSTANT_THROUGHPUT, ASYNC
+    }
+
+    private static final double[] PERCENTILES = {50, 75, 90, 99, 99.9, 99.99, 100};
+
+    /** 固定吞吐量模式下实际吞吐量低于目标的这个比例时告警 */
+    private static final double MIN_ACHIEVED_RATE_RATIO = 0.9;
+
+    private final int threads;
+
+    private final int connections;
+
+    private final int durationSeconds;
+
+    private final Mode mode;
+
+    private final int rate;
+
+    private final long expectedIntervalNanos;
+
+    /**
+     * @param threads               线程数
+     * @param connections           并发数（连接数）
+     * @param durationSeconds       压测持续时间
+     * @param mode                  压测模式
+     * @param rate                  CONSTANT_THROUGHPUT 模式下所有连接合计的每秒请求数，其它模式下用来推算预期请求间隔
+     * @param expectedIntervalNanos CLOSED_LOOP 和 ASYNC 模式下用于 coordinated omission 修正的预期请求间隔，
+     *                              0 表示按 rate 推算（同时在途的请求数 / rate），负数表示不修正
+     */
+    public LoadGenerator(int threads, int connections, int durationSeconds, Mode mode, int rate, long expectedIntervalNanos) {
+        if (threads <= 0 || connections <= 0 || durationSeconds <= 0) {
+            throw new IllegalArgumentException("threads、connections 和 durationSeconds 必须大于 0");
+        }
+        if (mode == Mode.CONSTANT_THROUGHPUT && rate <= 0) {
+            throw new IllegalArgumentException("CONSTANT_THROUGHPUT 模式下 rate 必须大于 0");
+        }
+        this.threads = threads;
+        this.connections = connections;
+        this.durationSeconds = durationSeconds;
+        this.mode = mode;
+        this.rate = rate;
+        if (expectedIntervalNanos == 0 && rate > 0) {
+            // 不修正时 Corrected 和 Uncorrected 两列完全一样，看不出 coordinated omission 的影响
+            int concurrency = mode == Mode.ASYNC ? connections : Math.min(connections, threads);
+            this.expectedIntervalNanos = TimeUnit.SECONDS.toNanos(1) * concurrency / rate;
+        } else {
+            this.expectedIntervalNanos = Math.max(0, expectedIntervalNanos);
+        }
+    }
+
+    /**
+     * 执行压测，阻塞直到压测结束
+     *
+     * @param request 一次请求
+     */
+    public Report run(Runnable request) throws InterruptedException {
+        if (mode == Mode.ASYNC) {
+            throw new IllegalStateException("ASYNC 模式请使用 runAsync");
+        }
+        Report report = new Report();
+        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+
+        /**
+         * 连接不能进入线程池的等待队列：一个连接要占住线程 durationSeconds 秒，排队的连接要等到前面的连接压完才开始，
+         * 压测时间会变成 durationSeconds 的好几倍，同时在途的请求数也不是 connections。
+         * 所以最多 threads 个发送者同时发请求，connections 大于 threads 时每个发送者轮流代表多个连接
+         */
+        int senders = Math.min(connections, threads);
+        if (senders < connections) {
+            if (mode == Mode.CLOSED_LOOP) {
+                log.info("{} connections share {} threads, at most {} requests in flight", connections, threads, senders);
+            } else {
+                log.info("{} connections share {} threads, each thread sends {} requests/sec", connections, threads,
+                        (double) rate / senders);
+            }
+        }
+        for (int i = 0; i < senders; i++) {
+            int sender = i;
+            if (mode == Mode.CLOSED_LOOP) {
+                executorService.execute(() -> this.closedLoop(request, report, start, sender, senders));
+            } else {
+                executorService.execute(() -> this.constantThroughput(request, report, start, sender, senders));
+            }
+        }
+
+        /**
+         * executorService.shutdown() 只是通知线程池关闭；并不是立刻关闭线程池，所以不影响线程池中已提交的任务的执行
+         * executorService.awaitTermination() 只是设置让当前线程等待退出
+         */
+        executorService.shutdown();
+        // durationSeconds + 3 是为了在给出 3 秒的余量
+        if (!executorService.awaitTermination(durationSeconds + 3, TimeUnit.SECONDS)) {
+            log.warn("Load generator not finished in {} seconds, stop it", durationSeconds + 3);
+            executorService.shutdownNow();
+        }
+        report.elapsedNanos = System.nanoTime() - start;
+        this.checkConnections(report);
+        if (mode == Mode.CONSTANT_THROUGHPUT && report.getAchievedRateRatio() < MIN_ACHIEVED_RATE_RATIO) {
+            log.warn("Achieved {} requests/sec, only {}% of target rate {}, latency of the missing requests is not recorded",
+                    String.format("%.2f", report.getThroughput()), Math.round(report.getAchievedRateRatio() * 100), rate);
+        }
+        return report;
+    }
+
+    /**
+     * 以 ASYNC 模式执行压测，阻塞直到所有逻辑客户端结束
+     *
+     * @param request 发出一次异步请求
+     */
+    public Report runAsync(Supplier<? extends CompletionStage<?>> request) throws InterruptedException {
+        if (mode != Mode.ASYNC) {
+            throw new IllegalStateException(mode + " 模式请使用 run");
+        }
+        Report report = new Report();
+        CountDownLatch finished = new CountDownLatch(connections);
+        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+        // 每个客户端的第一个请求都进入线程池队列，队列先进先出，所有客户端都发出第一个请求之后才会有客户端发第二个
+        for (int i = 0; i < connections; i++) {
+            int connection = i;
+            executorService.execute(() -> this.asyncRequest(request, report, connection, end, finished, executorService));
+        }
+        if (!finished.await(durationSeconds + 30, TimeUnit.SECONDS)) {
+            log.warn("{} async clients not finished", finished.getCount());
+        }
+        executorService.shutdownNow();
+        report.elapsedNanos = System.nanoTime() - start;
+        this.checkConnections(report);
+        return report;
+    }
+
+    /**
+     * 一个逻辑客户端发出一个请求，完成后把下一个请求重新提交给线程池
+     * <p>
+     *     不在当前线程里循环：请求同步完成（例如命中本地缓存）时循环会让一个客户端占住线程直到压测结束，其它客户端都发不出请求；
+     *     也不在完成回调里直接发下一个请求：异步完成的回调运行在 Lettuce 的 IO 线程上，会阻塞正要测量的事件循环。
+     * </p>
+     */
+    private void asyncRequest(Supplier<? extends CompletionStage<?>> request, Report report, int connection, long end,
+                              CountDownLatch finished, Executor executor) {
+        if (System.nanoTime() >= end) {
+            finished.countDown();
+            return;
+        }
+        long requestStart = System.nanoTime();
+        CompletableFuture<?> future;
+        try {
+            future = request.get().toCompletableFuture();
+        } catch (Exception e) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+        }
+        future.whenCompleteAsync((result, e) -> {
+            this.recordAsync(report, connection, requestStart, e);
+            this.asyncRequest(request, report, connection, end, finished, executor);
+        }, executor);
+    }
+
+    private void recordAsync(Report report, int connection, long requestStart, Throwable error) {
+        long latency = System.nanoTime() - requestStart;
+        report.corrected.recordNanos(latency, expectedIntervalNanos);
+        report.uncorrected.recordNanos(latency);
+        report.requests.increment();
+        report.connectionRequests.incrementAndGet(connection);
+        if (error != null) {
+            report.errors.increment();
+            log.debug("request error ", error);
+        }
+    }
+
+    /**
+     * 有连接一个请求都没有发出时告警，说明压测期间实际的并发数比配置的 connections 少
+     */
+    private void checkConnections(Report report) {
+        int idleConnections = report.getIdleConnections();
+        if (idleConnections > 0) {
+            log.warn("{} of {} connections sent no request, the actual concurrency is lower than configured",
+                    idleConnections, connections);
+        }
+    }
+
+    /**
+     * 一个发送者发完一个请求马上发下一个，依次代表 sender、sender + senders、sender + 2 * senders ... 这些连接
+     */
+    private void closedLoop(Runnable request, Report report, long start, int sender, int senders) {
+        long end = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+        int connection = sender;
+        long now;
+        do {
+            long requestStart = System.nanoTime();
+            this.execute(request, report, connection);
+            connection = this.nextConnection(connection, sender, senders);
+            now = System.nanoTime();
+            report.uncorrected.recordNanos(now - requestStart);
+            report.corrected.recordNanos(now - requestStart, expectedIntervalNanos);
+        } while (now < end && !Thread.currentThread().isInterrupted());
+    }
+
+    /**
+     * 一个发送者按 rate / senders 的节奏发请求，依次代表 sender、sender + senders、sender + 2 * senders ... 这些连接
+     */
+    private void constantThroughput(Runnable request, Report report, long start, int sender, int senders) {
+        long interval = Math.max(1, TimeUnit.SECONDS.toNanos(1) * senders / rate);
+        long end = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+        long intendedStart = start + interval * sender / senders;
+        int connection = sender;
+        while (intendedStart < end && !Thread.currentThread().isInterrupted()) {
+            long now;
+            while ((now = System.nanoTime()) < intendedStart) {
+                LockSupport.parkNanos(intendedStart - now);
+            }
+            this.execute(request, report, connection);
+            connection = this.nextConnection(connection, sender, senders);
+            long finished = System.nanoTime();
+            report.corrected.recordNanos(finished - intendedStart);
+            report.uncorrected.recordNanos(finished - now);
+            intendedStart += interval;
+        }
+    }
+
+    private void execute(Runnable request, Report report, int connection) {
+        try {
+            request.run();
+        } catch (Exception e) {
+            report.errors.increment();
+            log.debug("request error ", e);
+        }
+        report.requests.increment();
+        report.connectionRequests.incrementAndGet(connection);
+    }
+
+    private int nextConnection(int connection, int sender, int senders) {
+        return connection + senders < connections ? connection + senders : sender;
+    }
+
+    /**
+     * 压测结果
+     */
+    public class Report {
+
+        /** 修正了 coordinated omission 的延迟 */
+        private final LatencyHistogram corrected = new LatencyHistogram();
+
+        /** 只统计请求自身耗时的延迟 */
+        private final LatencyHistogram uncorrected = new LatencyHistogram();
+
+        private final LongAdder requests = new LongAdder();
+
+        private final LongAdder errors = new LongAdder();
+
+        /** 每个连接发出的请求数 */
+        private final AtomicLongArray connectionRequests = new AtomicLongArray(connections);
+
+        private long elapsedNanos;
+
+        public LatencyHistogram getCorrected() {
+            return corrected;
+        }
+
+        public LatencyHistogram getUncorrected() {
+            return uncorrected;
+        }
+
+        public long getRequests() {
+            return requests.sum();
+        }
+
+        public long getErrors() {
+            return errors.sum();
+        }
+
+        public long getMinConnectionRequests() {
+            long min = Long.MAX_VALUE;
+            for (int i = 0; i < connectionRequests.length(); i++) {
+                min = Math.min(min, connectionRequests.get(i));
+            }
+            return min;
+        }
+
+        public long getMaxConnectionRequests() {
+            long max = 0;
+            for (int i = 0; i < connectionRequests.length(); i++) {
+                max = Math.max(max, connectionRequests.get(i));
+            }
+            return max;
+        }
+
+        /**
+         * 一个请求都没有发出的连接数
+         */
+        public int getIdleConnections() {
+            int idle = 0;
+            for (int i = 0; i < connectionRequests.length(); i++) {
+                if (connectionRequests.get(i) == 0) {
+                    idle++;
+                }
+            }
+            return idle;
+        }
+
+        /**
+         * 固定吞吐量模式下实际吞吐量和目标 rate 的比值
+         */
+        public double getAchievedRateRatio() {
+            return rate == 0 ? 0 : getThroughput() / rate;
+        }
+
+        public double getElapsedSeconds() {
+            return elapsedNanos / 1e9;
+        }
+
+        public double getThroughput() {
+            return elapsedNanos == 0 ? 0 : requests.sum() / getElapsedSeconds();
+        }
+
+        /**
+         * 仿照 wrk 的输出格式
+         */
+        public String format() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("%.2fs test @ %s, %d threads and %d connections%n", getElapsedSeconds(), mode, threads,
+                    connections));
+            if (mode == Mode.CONSTANT_THROUGHPUT) {
+                sb.append(String.format("  Target rate: %d requests/sec, achieved %.2f requests/sec (%.1f%%)%n", rate,
+                        getThroughput(), getAchievedRateRatio() * 100));
+            } else if (expectedIntervalNanos > 0) {
+                sb.append(String.format("  Expected interval: %.3fms%n", expectedIntervalNanos / 1e6));
+            }
+            sb.append(String.format("  Latency     Corrected    Uncorrected%n"));
+            sb.append(String.format("    mean %13.3fms %12.3fms%n", corrected.meanNanos() / 1e6, uncorrected.meanNanos() / 1e6));
+            for (double percentile : PERCENTILES) {
+                sb.append(String.format("  %7.3f%% %12.3fms %12.3fms%n", percentile,
+                        corrected.percentileNanos(percentile) / 1e6, uncorrected.percentileNanos(percentile) / 1e6));
+            }
+            sb.append(String.format("  %d requests in %.2fs, %d errors%n", getRequests(), getElapsedSeconds(), getErrors()));
+            sb.append(String.format("  Requests per connection: min %d, max %d, %d idle connections%n",
+                    getMinConnectionRequests(), getMaxConnectionRequests(), getIdleConnections()));
+            sb.append(String.format("Requests/sec: %.2f", getThroughput()));
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package org.geekbang.time.commonmistakes.cachedesign.cacheinvalid;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 进程内的近端缓存（L1），放在 Redis（L2）前面
+ * <ul>
+ *     <li>容量有上限：按 key 的哈希分成多个段，每段是一个按访问顺序排列的 LinkedHashMap，分段加锁降低竞争；</li>
+ *     <li>写入后超过 expireAfterWrite 的条目视为过期，保证和 Redis 之间的不一致时间有上限；</li>
+ *     <li>段满时按 TinyLFU 的思路准入：新 key 的访问频率高于段中最久未访问的 key 时才淘汰后者，否则直接丢弃新 key，
+ *     避免一次性的冷数据把热点数据挤出去。访问频率和 HotKeyDetector 一样采样统计，每 SKETCH_SAMPLE_RATE 次读取记录一次，
+ *     命中缓存的读取大部分不需要写 sketch。</li>
+ * </ul>
+ */
+public class NearCache<K, V> {
+
+    private static final int SEGMENT_COUNT = 16;
+
+    /** 每多少次读取记录一次访问频率 */
+    private static final int SKETCH_SAMPLE_RATE = 8;
+
+    private final Segment<K, V>[] segments;
+
+    private final long expireAfterWriteNanos;
+
+    /** 所有段共享的访问频率统计 */
+    private final CountMinSketch sketch;
+
+    private final LongAdder evictionCount = new LongAdder();
+
+    private final LongAdder rejectionCount = new LongAdder();
+
+    @SuppressWarnings("unchecked")
+    public NearCache(int maximumSize, long expireAfterWrite, TimeUnit unit) {
+        if (maximumSize < SEGMENT_COUNT) {
+            throw new IllegalArgumentException("maximumSize 不能小于 " + SEGMENT_COUNT);
+        }
+        this.segments = (Segment<K, V>[]) new Segment<?, ?>[SEGMENT_COUNT];
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new Segment<>(maximumSize / SEGMENT_COUNT);
+        }
+        this.expireAfterWriteNanos = unit.toNanos(expireAfterWrite);
+        // 衰减周期按采样次数计算，相当于每 maximumSize * 10 次读取衰减一次
+        this.sketch = new CountMinSketch(maximumSize * 4, Math.max(1, maximumSize * 10 / SKETCH_SAMPLE_RATE));
+    }
+
+    /**
+     * 读取 key，不存在或已过期返回 null。命中率由调用方记录在 CacheMetrics 中，这里不重复统计
+     */
+    public V get(K key) {
+        if (ThreadLocalRandom.current().nextInt(SKETCH_SAMPLE_RATE) == 0) {
+            sketch.increment(key);
+        }
+        Segment<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            Entry<V> entry = segment.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.expireAtNanos - System.nanoTime() <= 0) {
+                segment.remove(key);
+                return null;
+            }
+            return entry.value;
+        }
+    }
+
+    /**
+     * 写入 key，段已满时由准入策略决定是否接受
+     *
+     * @return 是否写入成功
+     */
+    public boolean put(K key, V value) {
+        Segment<K, V> segment = segmentFor(key);
+        Entry<V> entry = new Entry<>(value, System.nanoTime() + expireAfterWriteNanos);
+        synchronized (segment) {
+            if (segment.containsKey(key) || segment.size() < segment.capacity) {
+                segment.put(key, entry);
+                return true;
+            }
+            Map.Entry<K, Entry<V>> eldest = segment.entrySet().iterator().next();
+            boolean expired = eldest.getValue().expireAtNanos - System.nanoTime() <= 0;
+            if (!expired && sketch.frequency(key) <= sketch.frequency(eldest.getKey())) {
+                rejectionCount.increment();
+                return false;
+            }
+            segment.remove(eldest.getKey());
+            segment.put(key, entry);
+        }
+        evictionCount.increment();
+        return true;
+    }
+
+    public void invalidate(K key) {
+        Segment<K, V> segment = segmentFor(key);
+        synchronized (segment) {
+            segment.remove(key);
+        }
+    }
+
+    public long evictionCount() {
+        return evictionCount.sum();
+    }
+
+    public long rejectionCount() {
+        return rejectionCount.sum();
+    }
+
+    private Segment<K, V> segmentFor(K key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return segments[h & (SEGMENT_COUNT - 1)];
+    }
+
+    private static class Segment<K, V> extends LinkedHashMap<K, Entry<V>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+    }
+
+    private static class Entry<V> {
+
+        private final V value;
+
+        private final long expireAtNanos;
+
+        Entry(V value, long expireAtNanos) {
+            this.value = value;
+            this.expireAtNanos = expireAtNanos;
+        }
+    }
+}
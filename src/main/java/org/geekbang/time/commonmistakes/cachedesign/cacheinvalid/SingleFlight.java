@@ -0,0 +1,67 @@
+package org.geekbang.time.commonmistakes.cachedesign.cacheinvalid;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * 按 key 合并并发的回源请求（single-flight）
+ * <p>
+ *     同一个 key 同一时刻只有第一个调用者真正执行 loader，其它并发调用者等待同一个 Future 的结果，
+ *     缓存过期瞬间的大量并发请求只会产生一次回源，避免惊群（thundering herd）。<br>
+ *     加载完成后 key 立即从 in-flight 表中移除，所以 loader 内部应该先再查一次缓存，
+ *     避免晚到的调用者在缓存已经回填后又回源一次。
+ * </p>
+ */
+public class SingleFlight<K, V> {
+
+    private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    /** 被合并（没有自己执行 loader）的调用次数 */
+    private final LongAdder coalescedCount = new LongAdder();
+
+    public V load(K key, Function<? super K, ? extends V> loader) {
+        CompletableFuture<V> future = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            coalescedCount.increment();
+            return await(existing);
+        }
+        try {
+            V value = loader.apply(key);
+            future.complete(value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    public long coalescedCount() {
+        return coalescedCount.sum();
+    }
+
+    private V await(CompletableFuture<V> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CompletionException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new CompletionException(cause);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package org.geekbang.time.commonmistakes.cachedesign.cacheinvalid;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * 压测参数，对应配置 cacheinvalid.stress.*
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "cacheinvalid.stress")
+public class StressTestProperties {
+
+    public enum KeyDistribution {
+        UNIFORM, ZIPF
+    }
+
+    /** 是否在应用启动后自动压测 */
+    private boolean enabled = true;
+
+    /** 线程数 */
+    private int threads = 5;
+
+    /** 并发数（连接数） */
+    private int connections = 8;
+
+    /** 压测持续时间 */
+    private int durationSeconds = 30;
+
+    /** 压测模式：闭环或固定吞吐量 */
+    private LoadGenerator.Mode mode = LoadGenerator.Mode.CLOSED_LOOP;
+
+    /** 固定吞吐量模式下所有连接合计的每秒请求数，其它模式下用来推算预期请求间隔 */
+    private int rate = 1000;
+
+    /** 闭环和 ASYNC 模式下用于 coordinated omission 修正的预期请求间隔（微秒），0 表示按 同时在途的请求数 / rate 推算（CLOSED_LOOP 是 min(connections, threads)，ASYNC 是 connections），负数表示不修正 */
+    private long expectedIntervalMicros = 0;
+
+    /** 压测目标：city、cities，或者 beanName#methodName 形式的任意无参方法 */
+    private String target = "city";
+
+    /** cities 目标每次查询的 id 个数 */
+    private int batchSize = 20;
+
+    /** 请求中不存在的城市 id 的占比，用来模拟缓存穿透 */
+    private double invalidIdRatio = 0.2;
+
+    /** 不存在的城市 id 的取值范围：-invalidIdSpace 到 -1 */
+    private int invalidIdSpace = 10000;
+
+    /** city 目标的城市 id 分布：均匀分布，或者少数热点 id 占大部分请求的 Zipf 分布 */
+    private KeyDistribution keyDistribution = KeyDistribution.UNIFORM;
+
+    /** Zipf 分布的倾斜程度，越大越集中在少数热点 id 上 */
+    private double zipfExponent = 0.99;
+}
@@ -0,0 +1,82 @@
+package org.geekbang.time.commonmistakes.cachedesign.cacheinvalid;
+
+import io.lettuce.core.cluster.api.async.RedisClusterAsyncCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * 每个城市一个 string key（city + id），过期时间直接交给 Redis
+ * <p>
+ *     实现最简单，但每个 key 都有 dictEntry、key 对象、过期字典项等固定开销，城市数据本身只有十几个字节，
+ *     key 越多这部分开销占比越大。
+ * </p>
+ */
+public class StringCityStore implements CityStore {
+
+    private static final String KEY_PREFIX = "city";
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final Supplier<RedisClusterAsyncCommands<byte[], byte[]>> asyncCommands;
+
+    public StringCityStore(StringRedisTemplate stringRedisTemplate, Supplier<RedisClusterAsyncCommands<byte[], byte[]>> asyncCommands) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.asyncCommands = asyncCommands;
+    }
+
+    @Override
+    public Format format() {
+        return Format.STRING;
+    }
+
+    @Override
+    public String get(int cityId) {
+        return stringRedisTemplate.opsForValue().get(KEY_PREFIX + cityId);
+    }
+
+    @Override
+    public CompletableFuture<String> getAsync(int cityId) {
+        return asyncCommands.get().get((KEY_PREFIX + cityId).getBytes(StandardCharsets.UTF_8)).toCompletableFuture()
+                .thenApply(bytes -> bytes == null ? null : new String(bytes, StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public List<String> multiGet(List<Integer> cityIds) {
+        return stringRedisTemplate.opsForValue().multiGet(cityIds.stream().map(id -> KEY_PREFIX + id).collect(Collectors.toList()));
+    }
+
+    @Override
+    public void set(int cityId, String data, long timeoutSeconds) {
+        stringRedisTemplate.opsForValue().set(KEY_PREFIX + cityId, data, timeoutSeconds, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void setAll(Map<Integer, String> cities, Map<Integer, Long> timeouts) {
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringRedisConnection = (StringRedisConnection) connection;
+            cities.forEach((cityId, data) -> stringRedisConnection.setEx(KEY_PREFIX + cityId, timeouts.get(cityId), data));
+            return null;
+        });
+    }
+
+    @Override
+    public void delete(int cityId) {
+        stringRedisTemplate.delete(KEY_PREFIX + cityId);
+    }
+
+    @Override
+    public Collection<String> keys(int maxCityId) {
+        return IntStream.rangeClosed(1, maxCityId).mapToObj(id -> KEY_PREFIX + id).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,45 @@
+package org.geekbang.time.commonmistakes.common;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 按 Zipf 分布生成 [0, items) 之间的整数，0 出现的概率最高，i 出现的概率与 1 / (i + 1)^exponent 成正比
+ * <p>
+ *     真实业务的访问通常是高度倾斜的：少数热点 key 占了大部分流量。exponent 越大越倾斜，0.99 是 YCSB 的默认值。<br>
+ *     构造时预先计算好累积分布，next() 只做一次二分查找；对象不可变，可以被多个线程共享。
+ * </p>
+ */
+public class ZipfianGenerator {
+
+    private final double[] cumulativeProbabilities;
+
+    public ZipfianGenerator(int items, double exponent) {
+        if (items <= 0 || exponent <= 0) {
+            throw new IllegalArgumentException("items 和 exponent 必须大于 0");
+        }
+        cumulativeProbabilities = new double[items];
+        double sum = 0;
+        for (int i = 0; i < items; i++) {
+            sum += 1 / Math.pow(i + 1, exponent);
+            cumulativeProbabilities[i] = sum;
+        }
+        for (int i = 0; i < items; i++) {
+            cumulativeProbabilities[i] /= sum;
+        }
+    }
+
+    public int next() {
+        double p = ThreadLocalRandom.current().nextDouble();
+        int low = 0;
+        int high = cumulativeProbabilities.length - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (cumulativeProbabilities[mid] < p) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
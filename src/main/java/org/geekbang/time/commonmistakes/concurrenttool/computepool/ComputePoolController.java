@@ -0,0 +1,24 @@
+package org.geekbang.time.commonmistakes.concurrenttool.computepool;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.Map;
+
+@RestController
+@RequestMapping("/computepool")
+public class ComputePoolController {
+
+    @Autowired
+    private ComputePoolRegistry computePoolRegistry;
+
+    /**
+     * 各个计算线程池的并行度、活跃线程数、排队任务数和窃取次数
+     */
+    @GetMapping("/metrics")
+    public Map<String, Object> metrics() {
+        return computePoolRegistry.metrics();
+    }
+}
@@ -0,0 +1,23 @@
+package org.geekbang.time.commonmistakes.concurrenttool.computepool;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 计算线程池的参数，对应配置 compute-pool.*
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "compute-pool")
+public class ComputePoolProperties {
+
+    /** 每个线程池最多排队等待执行的提交个数，超过时直接拒绝，避免请求无限堆积 */
+    private int maxQueuedSubmissions = 64;
+
+    /** 按名称覆盖线程池的并行度，没有配置的使用代码中指定的默认值 */
+    private Map<String, Integer> parallelism = new HashMap<>();
+}
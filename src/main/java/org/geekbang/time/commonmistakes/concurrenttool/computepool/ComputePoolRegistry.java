@@ -0,0 +1,141 @@
+package org.geekbang.time.commonmistakes.concurrenttool.computepool;
+
+import lombok.extern.slf4j.Slf4j;
+import org.geekbang.time.commonmistakes.concurrenttool.threadlocal.RequestContexts;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * 按名称共享的 ForkJoinPool
+ * <p>
+ *     每个请求都 new 一个 ForkJoinPool 再用 awaitTermination 阻塞等待，并发请求一多线程数就没有上限，Tomcat 的线程也全被挂住。<br>
+ *     这里同一个名称的线程池只创建一次，线程数由并行度固定；排队的提交超过 compute-pool.max-queued-submissions 时直接拒绝。
+ *     supplyAsync 返回 CompletableFuture，Controller 直接返回它，Spring MVC 会在计算完成后再写响应，请求线程不需要等待。
+ * </p>
+ */
+@Slf4j
+@Component
+public class ComputePoolRegistry {
+
+    @Autowired
+    private ComputePoolProperties properties;
+
+    private final ConcurrentMap<String, ManagedPool> pools = new ConcurrentHashMap<>();
+
+    /**
+     * 获取线程池，不存在时按 defaultParallelism 创建（配置中的 compute-pool.parallelism.名称 优先）
+     */
+    public ForkJoinPool pool(String name, int defaultParallelism) {
+        return this.managedPool(name, defaultParallelism).pool;
+    }
+
+    private ManagedPool managedPool(String name, int defaultParallelism) {
+        return pools.computeIfAbsent(name, key -> new ManagedPool(key,
+                properties.getParallelism().getOrDefault(key, defaultParallelism)));
+    }
+
+    /**
+     * 在指定的线程池中执行计算，计算内部的并行流也会使用这个线程池；调用线程的 RequestContext 会传递给计算任务
+     *
+     * @return 排队的提交过多时，返回一个以 RejectedExecutionException 结束的 CompletableFuture
+     */
+    public <T> CompletableFuture<T> supplyAsync(String name, int defaultParallelism, Supplier<T> supplier) {
+        ManagedPool managedPool = this.managedPool(name, defaultParallelism);
+        if (managedPool.pool.getQueuedSubmissionCount() >= properties.getMaxQueuedSubmissions()) {
+            managedPool.rejected.increment();
+            CompletableFuture<T> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(new RejectedExecutionException("计算线程池 " + name + " 排队的任务过多"));
+            return rejected;
+        }
+        try {
+            CompletableFuture<T> future = CompletableFuture.supplyAsync(RequestContexts.wrap(supplier), managedPool.pool);
+            managedPool.submitted.increment();
+            return future;
+        } catch (RejectedExecutionException e) {
+            // 线程池刚好被 retire 了，重新获取时会创建一个新的
+            if (!managedPool.pool.isShutdown()) {
+                throw e;
+            }
+            return this.supplyAsync(name, defaultParallelism, supplier);
+        }
+    }
+
+    /**
+     * 关闭并移除线程池，已经提交的任务会继续执行完；之后再用这个名称时会重新创建。
+     * 用于按参数临时创建的线程池，避免它们一直存活
+     */
+    public void retire(String name) {
+        ManagedPool managedPool = pools.remove(name);
+        if (managedPool != null) {
+            managedPool.pool.shutdown();
+            log.info("Compute pool {} retired", name);
+        }
+    }
+
+    /**
+     * 所有线程池的运行状态
+     */
+    public Map<String, Object> metrics() {
+        Map<String, Object> metrics = new TreeMap<>();
+        pools.forEach((name, managedPool) -> {
+            ForkJoinPool pool = managedPool.pool;
+            Map<String, Object> poolMetrics = new LinkedHashMap<>();
+            poolMetrics.put("parallelism", pool.getParallelism());
+            poolMetrics.put("poolSize", pool.getPoolSize());
+            poolMetrics.put("activeThreads", pool.getActiveThreadCount());
+            poolMetrics.put("runningThreads", pool.getRunningThreadCount());
+            poolMetrics.put("queuedSubmissions", pool.getQueuedSubmissionCount());
+            poolMetrics.put("queuedTasks", pool.getQueuedTaskCount());
+            poolMetrics.put("steals", pool.getStealCount());
+            poolMetrics.put("submitted", managedPool.submitted.sum());
+            poolMetrics.put("rejected", managedPool.rejected.sum());
+            metrics.put(name, poolMetrics);
+        });
+        return metrics;
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        pools.values().forEach(managedPool -> managedPool.pool.shutdown());
+        for (ManagedPool managedPool : pools.values()) {
+            if (!managedPool.pool.awaitTermination(5, TimeUnit.SECONDS)) {
+                log.warn("Compute pool {} not terminated in 5 seconds", managedPool.name);
+            }
+        }
+    }
+
+    private static class ManagedPool {
+
+        private final String name;
+
+        private final ForkJoinPool pool;
+
+        private final LongAdder submitted = new LongAdder();
+
+        private final LongAdder rejected = new LongAdder();
+
+        ManagedPool(String name, int parallelism) {
+            this.name = name;
+            this.pool = new ForkJoinPool(parallelism, forkJoinPool -> {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+                thread.setName(name + "-" + thread.getPoolIndex());
+                return thread;
+            }, (thread, e) -> log.error("Uncaught exception in {}", thread.getName(), e), false);
+            log.info("Compute pool {} created, parallelism: {}", name, parallelism);
+        }
+    }
+}
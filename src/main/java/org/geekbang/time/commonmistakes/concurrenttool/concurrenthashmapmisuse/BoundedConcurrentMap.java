@@ -0,0 +1,138 @@
+package org.geekbang.time.commonmistakes.concurrenttool.concurrenthashmapmisuse;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+
+/**
+ * 有容量上限的 ConcurrentHashMap：写入前先通过 CAS 预留位置，预留到几个位置就只能写入几个元素
+ * <p>
+ *     “计算还差多少个 + putAll” 这个复合操作不需要再锁住整个 map：
+ *     每个线程用一次 CAS 从剩余容量中拿走一部分，不同线程拿到的位置互不重叠，加起来永远不会超过容量；
+ *     拿到位置之后的 put 直接交给 ConcurrentHashMap，各线程之间不需要互相等待。<br>
+ *     key 已经存在导致没有用掉的位置会归还，元素被删除时也会归还位置。<br>
+ *     putAll 和 Map.putAll 一样会覆盖已经存在的 key 的 value（覆盖不占用新的位置）；fill 和 putIfAbsent 不覆盖。
+ * </p>
+ */
+public class BoundedConcurrentMap<K, V> {
+
+    private final ConcurrentMap<K, V> map = new ConcurrentHashMap<>();
+
+    private final int capacity;
+
+    /** 已经被预留（包括已经写入）的位置个数，始终不小于 map.size() */
+    private final AtomicInteger reserved = new AtomicInteger();
+
+    public BoundedConcurrentMap(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity 必须大于 0");
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * 把 map 补满：一次性预留所有剩余的位置，再让 supplier 生成这么多个元素写入
+     *
+     * @param supplier 参数是预留到的位置个数，返回要写入的元素
+     * @return 实际写入的元素个数
+     */
+    public int fill(IntFunction<? extends Map<K, V>> supplier) {
+        int granted = this.reserve(capacity);
+        if (granted == 0) {
+            return 0;
+        }
+        return this.putReserved(supplier.apply(granted), granted, false);
+    }
+
+    /**
+     * 写入 data 中的元素：已经存在的 key 直接覆盖 value，新的 key 需要预留位置，容量不够时多出来的新 key 被丢弃
+     *
+     * @return 新写入的 key 的个数，不包括被覆盖的
+     */
+    public int putAll(Map<? extends K, ? extends V> data) {
+        return this.putReserved(data, this.reserve(data.size()), true);
+    }
+
+    /**
+     * @return 容量已满或者 key 已经存在时返回 false
+     */
+    public boolean putIfAbsent(K key, V value) {
+        int granted = this.reserve(1);
+        return granted == 1 && this.putReserved(Collections.singletonMap(key, value), granted, false) == 1;
+    }
+
+    public V get(K key) {
+        return map.get(key);
+    }
+
+    public V remove(K key) {
+        V removed = map.remove(key);
+        if (removed != null) {
+            reserved.decrementAndGet();
+        }
+        return removed;
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * 只读视图
+     */
+    public Map<K, V> asMap() {
+        return Collections.unmodifiableMap(map);
+    }
+
+    /**
+     * 通过 CAS 从剩余容量中预留最多 count 个位置
+     *
+     * @return 实际预留到的位置个数，容量已满时为 0
+     */
+    private int reserve(int count) {
+        while (true) {
+            int current = reserved.get();
+            int granted = Math.min(count, capacity - current);
+            if (granted <= 0) {
+                return 0;
+            }
+            if (reserved.compareAndSet(current, current + granted)) {
+                return granted;
+            }
+        }
+    }
+
+    /**
+     * 用预留到的 granted 个位置写入新的 key，没有用掉的位置归还
+     *
+     * @param replace 是否覆盖已经存在的 key，覆盖不占用位置，所以位置用完之后还要继续遍历
+     */
+    private int putReserved(Map<? extends K, ? extends V> data, int granted, boolean replace) {
+        int added = 0;
+        Iterator<? extends Map.Entry<? extends K, ? extends V>> iterator = data.entrySet().iterator();
+        while ((added < granted || replace) && iterator.hasNext()) {
+            Map.Entry<? extends K, ? extends V> entry = iterator.next();
+            if (replace && map.replace(entry.getKey(), entry.getValue()) != null) {
+                continue;
+            }
+            if (added < granted && map.putIfAbsent(entry.getKey(), entry.getValue()) == null) {
+                added++;
+            } else if (replace) {
+                // 已满，或者 replace 之后被其它线程抢先写入了同一个 key，只覆盖已经存在的
+                map.replace(entry.getKey(), entry.getValue());
+            }
+        }
+        if (added < granted) {
+            reserved.addAndGet(added - granted);
+        }
+        return added;
+    }
+}
@@ -1,6 +1,8 @@
 package org.geekbang.time.commonmistakes.concurrenttool.concurrenthashmapmisuse;
 
 import lombok.extern.slf4j.Slf4j;
+import org.geekbang.time.commonmistakes.concurrenttool.computepool.ComputePoolRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
@@ -35,6 +37,11 @@ public class ConcurrentHashMapMisuseController {
     private final static int THREAD_COUNT = 15;
     // 总元素数量
     private final static int ITEM_COUNT = 1000;
+    // 计算线程池的名称，所有请求共享同一个线程池
+    private final static String POOL_NAME = "concurrenthashmapmisuse";
+
+    @Autowired
+    private ComputePoolRegistry computePoolRegistry;
 
     /**
      * 生成一个 ConcurrentMap，其中包含指定数量的键值对。
@@ -57,75 +64,86 @@ public class ConcurrentHashMapMisuseController {
      * 错误的示例
      *
      * @return
-     * @throws InterruptedException 中断异常
      */
     @GetMapping("/wrong")
-    public boolean wrong() throws InterruptedException {
+    public CompletableFuture<Boolean> wrong() {
         // 初始化数据
         ConcurrentMap<String, Long> concurrentMap = this.getData(ITEM_COUNT - 100);
         log.info("init size: {} ", concurrentMap.size());
 
-        ForkJoinPool forkJoinPool = new ForkJoinPool(THREAD_COUNT);
-        // 使用线程池并发处理逻辑
-        forkJoinPool.execute(new Runnable() {
-            @Override
-            public void run() {
-                // 并行流的调度和分配工作由Java的Fork/Join框架自动管理，
-                IntStream.rangeClosed(1, THREAD_COUNT).parallel().forEach(new IntConsumer() {
-                    @Override
-                    public void accept(int i) {
-                        // 还需要补充多少个元素（100个吗？）
-                        int gap = ITEM_COUNT - concurrentMap.size();
-                        log.info("gap size: {} ", gap);
-                        ConcurrentMap<String, Long> data = getData(gap);
-                        // 补充元素
-                        concurrentMap.putAll(data);
-                    }
-                });
-            }
-        });
-        // 等待所有并行任务完成
-        forkJoinPool.shutdown();
-        forkJoinPool.awaitTermination(1, TimeUnit.HOURS);
+        // 使用线程池并发处理逻辑，请求线程不等待计算完成
+        return computePoolRegistry.supplyAsync(POOL_NAME, THREAD_COUNT, () -> {
+            // 并行流的调度和分配工作由Java的Fork/Join框架自动管理，在哪个 ForkJoinPool 里执行就使用哪个线程池
+            IntStream.rangeClosed(1, THREAD_COUNT).parallel().forEach(new IntConsumer() {
+                @Override
+                public void accept(int i) {
+                    // 还需要补充多少个元素（100个吗？）
+                    int gap = ITEM_COUNT - concurrentMap.size();
+                    log.info("gap size: {} ", gap);
+                    ConcurrentMap<String, Long> data = getData(gap);
+                    // 补充元素
+                    concurrentMap.putAll(data);
+                }
+            });
 
-        // 最后元素个数会是 1000 吗？
-        log.info("finish size:{}", concurrentMap.size());
-        return true;
+            // 最后元素个数会是 1000 吗？
+            log.info("finish size:{}", concurrentMap.size());
+            return true;
+        });
     }
 
     /**
      * 正确的示例
      *
      * @return
-     * @throws InterruptedException 中断异常
      */
     @GetMapping("/right")
-    public boolean right() throws InterruptedException {
+    public CompletableFuture<Boolean> right() {
         ConcurrentMap<String, Long> concurrentMap = this.getData(ITEM_COUNT - 100);
         log.info("init size: {} ", concurrentMap.size());
 
-        ForkJoinPool forkJoinPool = new ForkJoinPool(THREAD_COUNT);
-        forkJoinPool.execute(new Runnable() {
-            @Override
-            public void run() {
-                IntStream.rangeClosed(1, THREAD_COUNT).parallel().forEach(new IntConsumer() {
-                    @Override
-                    public void accept(int i) {
-                        // 这段复合逻辑需要锁一下这个ConcurrentHashMap
-                        synchronized (concurrentMap) {
-                            int gap = ITEM_COUNT - concurrentMap.size();
-                            log.info("gap size: {} ", gap);
-                            ConcurrentMap<String, Long> data = getData(gap);
-                            concurrentMap.putAll(data);
-                        }
+        return computePoolRegistry.supplyAsync(POOL_NAME, THREAD_COUNT, () -> {
+            IntStream.rangeClosed(1, THREAD_COUNT).parallel().forEach(new IntConsumer() {
+                @Override
+                public void accept(int i) {
+                    // 这段复合逻辑需要锁一下这个ConcurrentHashMap
+                    synchronized (concurrentMap) {
+                        int gap = ITEM_COUNT - concurrentMap.size();
+                        log.info("gap size: {} ", gap);
+                        ConcurrentMap<String, Long> data = getData(gap);
+                        concurrentMap.putAll(data);
                     }
-                });
-            }
+                }
+            });
+
+            log.info("finish size:{}", concurrentMap.size());
+            return true;
         });
-        forkJoinPool.shutdown();
-        forkJoinPool.awaitTermination(1, TimeUnit.HOURS);
+    }
+
+    /**
+     * 不加锁的正确示例：每个线程通过 CAS 预留剩余的位置，只补充自己预留到的个数
+     *
+     * @return
+     */
+    @GetMapping("/bounded")
+    public CompletableFuture<Boolean> bounded() {
+        BoundedConcurrentMap<String, Long> boundedMap = new BoundedConcurrentMap<>(ITEM_COUNT);
+        boundedMap.putAll(this.getData(ITEM_COUNT - 100));
+        log.info("init size: {} ", boundedMap.size());
 
-        log.info("finish size:{}", concurrentMap.size());
-        return true;
+        return computePoolRegistry.supplyAsync(POOL_NAME, THREAD_COUNT, () -> {
+            IntStream.rangeClosed(1, THREAD_COUNT).parallel().forEach(new IntConsumer() {
+                @Override
+                public void accept(int i) {
+                    // 预留到几个位置就补充几个，多个线程可以同时补充
+                    int added = boundedMap.fill(gap -> getData(gap));
+                    log.info("gap size: {} ", added);
+                }
+            });
+
+            log.info("finish size:{}", boundedMap.size());
+            return boundedMap.size() == ITEM_COUNT;
+        });
     }
 }
@@ -1,18 +1,27 @@
 package org.geekbang.time.commonmistakes.concurrenttool.concurrenthashmapperformance;
 
 import lombok.extern.slf4j.Slf4j;
+import org.geekbang.time.commonmistakes.concurrenttool.computepool.ComputePoolRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.util.Assert;
 import org.springframework.util.StopWatch;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
 import java.util.function.IntConsumer;
+import java.util.function.IntSupplier;
+import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 @RestController
@@ -22,9 +31,36 @@ public class ConcurrentHashMapPerformanceController {
     private final static int LOOP_COUNT = 9999999;
     private final static int THREAD_COUNT = 10;
     private final static int ITEM_COUNT = 10;
+    // 计算线程池的名称，所有请求共享同一个线程池
+    private final static String POOL_NAME = "concurrenthashmapperformance";
+    // 对比实验允许的最大线程数，每次实验创建一个这么多线程的计算线程池，实验结束后关闭
+    private final static int MAX_EXPERIMENT_THREADS = 256;
+    // 对比实验每轮最多的计数次数
+    private final static int MAX_LOOP_COUNT = 100_000_000;
+    // 对比实验和 topK 最多的 key 种类：Zipf 分布的累积概率表和它成正比
+    private final static int MAX_ITEM_COUNT = 1_000_000;
+    // INT_LONG_COUNTER_MAP 最多的 key 种类，key 更多时分份和填充都要缩减，对比已经没有意义，默认也不参与对比
+    private final static int MAX_INT_LONG_COUNTER_MAP_ITEM_COUNT = 100_000;
+    // 对比实验最多的预热轮数和测量轮数
+    private final static int MAX_ITERATIONS = 100;
+    // topK 每个分段最多记录的 key 个数
+    private final static int MAX_TOPK_CAPACITY = 100_000;
 
+    @Autowired
+    private ComputePoolRegistry computePoolRegistry;
+
+    // 同一时间只允许一个对比实验：多个实验同时运行会互相抢 CPU，测出的耗时没有意义，线程数也会成倍增加
+    private final AtomicBoolean experimentRunning = new AtomicBoolean();
+
+    /**
+     * 各种计数方式都在共享的计算线程池中执行，请求线程不等待
+     */
     @GetMapping("/performance")
-    public boolean performance() throws InterruptedException {
+    public CompletableFuture<Boolean> performance() {
+        return computePoolRegistry.supplyAsync(POOL_NAME, THREAD_COUNT, this::comparePerformance);
+    }
+
+    private boolean comparePerformance() {
         StopWatch stopWatch = new StopWatch();
         stopWatch.start("goodUse");
         Map<Integer, Long> goodLongMap = this.goodUse();
@@ -39,59 +75,180 @@ public class ConcurrentHashMapPerformanceController {
         Assert.isTrue(normaLongMap.entrySet().stream().mapToLong(Map.Entry::getValue)
                 .reduce(0, Long::sum) == LOOP_COUNT, "normalUse count error");
         stopWatch.stop();
+
+        stopWatch.start("primitiveUse");
+        IntLongCounterMap primitiveMap = this.primitiveUse();
+        stopWatch.stop();
+        Assert.isTrue(primitiveMap.size() == ITEM_COUNT, "primitiveUse size error");
+        Assert.isTrue(primitiveMap.total() == LOOP_COUNT, "primitiveUse count error");
+
+        stopWatch.start("preAggregatedUse");
+        Map<Integer, Long> preAggregatedMap = this.preAggregatedUse();
+        stopWatch.stop();
+        Assert.isTrue(preAggregatedMap.size() == ITEM_COUNT, "preAggregatedUse size error");
+        Assert.isTrue(preAggregatedMap.values().stream().mapToLong(Long::longValue).sum() == LOOP_COUNT,
+                "preAggregatedUse count error");
         log.info(stopWatch.prettyPrint());
         return true;
     }
 
-    private Map<Integer, Long> normalUse() throws InterruptedException {
+    /**
+     * 可配置参数的对比实验，每次实验使用一个单独的计算线程池，返回每种计数方式的吞吐量、每轮耗时分位数和内存分配量，
+     * 例如 /concurrenthashmapperformance/experiment?threadCount=32&itemCount=1000&distribution=ZIPF。
+     * 已有实验在运行时直接拒绝，不排队
+     *
+     * @param strategies 参与对比的计数方式，默认全部
+     */
+    @GetMapping("/experiment")
+    public CompletableFuture<Map<String, Object>> experiment(@RequestParam(defaultValue = "" + LOOP_COUNT) int loopCount,
+                                                            @RequestParam(defaultValue = "" + THREAD_COUNT) int threadCount,
+                                                            @RequestParam(defaultValue = "" + ITEM_COUNT) int itemCount,
+                                                            @RequestParam(defaultValue = "UNIFORM") KeyDistribution distribution,
+                                                            @RequestParam(defaultValue = "2") int warmupIterations,
+                                                            @RequestParam(defaultValue = "5") int iterations,
+                                                            @RequestParam(required = false) List<CountingStrategy> strategies) {
+        if (threadCount <= 0 || threadCount > MAX_EXPERIMENT_THREADS) {
+            throw new IllegalArgumentException("threadCount 必须在 1 到 " + MAX_EXPERIMENT_THREADS + " 之间");
+        }
+        if (loopCount <= 0 || loopCount > MAX_LOOP_COUNT) {
+            throw new IllegalArgumentException("loopCount 必须在 1 到 " + MAX_LOOP_COUNT + " 之间");
+        }
+        if (itemCount <= 0 || itemCount > MAX_ITEM_COUNT) {
+            throw new IllegalArgumentException("itemCount 必须在 1 到 " + MAX_ITEM_COUNT + " 之间");
+        }
+        if (warmupIterations < 0 || warmupIterations > MAX_ITERATIONS || iterations <= 0 || iterations > MAX_ITERATIONS) {
+            throw new IllegalArgumentException("warmupIterations 必须在 0 到 " + MAX_ITERATIONS + " 之间，iterations 必须在 1 到 " + MAX_ITERATIONS + " 之间");
+        }
+        List<CountingStrategy> selectedStrategies = strategies == null || strategies.isEmpty()
+                ? Arrays.stream(CountingStrategy.values())
+                .filter(strategy -> strategy != CountingStrategy.INT_LONG_COUNTER_MAP || itemCount <= MAX_INT_LONG_COUNTER_MAP_ITEM_COUNT)
+                .collect(Collectors.toList())
+                : strategies;
+        if (selectedStrategies.contains(CountingStrategy.INT_LONG_COUNTER_MAP) && itemCount > MAX_INT_LONG_COUNTER_MAP_ITEM_COUNT) {
+            throw new IllegalArgumentException("INT_LONG_COUNTER_MAP 的 itemCount 不能超过 " + MAX_INT_LONG_COUNTER_MAP_ITEM_COUNT);
+        }
+        ContentionExperiment experiment = new ContentionExperiment(selectedStrategies,
+                loopCount, itemCount, distribution, warmupIterations, iterations);
+        if (!experimentRunning.compareAndSet(false, true)) {
+            throw new IllegalStateException("已有对比实验在运行，请等它结束后再试");
+        }
+        String poolName = POOL_NAME + "-experiment";
+        CompletableFuture<Map<String, Object>> future;
+        try {
+            future = computePoolRegistry.supplyAsync(poolName, threadCount, () -> {
+                Map<String, Object> parameters = new LinkedHashMap<>();
+                parameters.put("loopCount", loopCount);
+                parameters.put("threadCount", threadCount);
+                parameters.put("itemCount", itemCount);
+                parameters.put("distribution", distribution);
+                parameters.put("warmupIterations", warmupIterations);
+                parameters.put("iterations", iterations);
+                parameters.put("availableProcessors", Runtime.getRuntime().availableProcessors());
+                Map<String, Object> result = new LinkedHashMap<>();
+                result.put("parameters", parameters);
+                result.put("results", experiment.run());
+                return result;
+            });
+        } catch (RuntimeException e) {
+            computePoolRegistry.retire(poolName);
+            experimentRunning.set(false);
+            throw e;
+        }
+        // 先关闭线程池再放行下一个实验，下一个实验会按它的 threadCount 重新创建线程池
+        return future.whenComplete((result, e) -> {
+            computePoolRegistry.retire(poolName);
+            experimentRunning.set(false);
+        });
+    }
+
+    /**
+     * key 的种类很多（默认一百万个，Zipf 分布）时，不再为每个 key 保存计数，只用固定大小的内存统计出现次数最多的 k 个 key
+     *
+     * @param k         返回的 key 个数
+     * @param itemCount key 的种类
+     * @param capacity  每个分段最多记录的 key 个数，误差上限是 总次数 / capacity
+     */
+    @GetMapping("/topk")
+    public CompletableFuture<Map<String, Object>> topK(@RequestParam(defaultValue = "10") int k,
+                                                       @RequestParam(defaultValue = "1000000") int itemCount,
+                                                       @RequestParam(defaultValue = "1000") int capacity) {
+        if (itemCount <= 0 || itemCount > MAX_ITEM_COUNT) {
+            throw new IllegalArgumentException("itemCount 必须在 1 到 " + MAX_ITEM_COUNT + " 之间");
+        }
+        if (capacity <= 0 || capacity > MAX_TOPK_CAPACITY || k <= 0 || k > capacity) {
+            throw new IllegalArgumentException("capacity 必须在 1 到 " + MAX_TOPK_CAPACITY + " 之间，k 必须在 1 到 capacity 之间");
+        }
+        return computePoolRegistry.supplyAsync(POOL_NAME, THREAD_COUNT, () -> {
+            TopKCounter topKCounter = new TopKCounter(capacity);
+            IntSupplier keys = KeyDistribution.ZIPF.generator(itemCount);
+            IntStream.rangeClosed(1, LOOP_COUNT).parallel().forEach(i -> topKCounter.increment(keys.getAsInt()));
+
+            SpaceSavingSummary summary = topKCounter.summary();
+            Assert.isTrue(summary.total() == LOOP_COUNT, "topK count error");
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("total", summary.total());
+            result.put("capacity", summary.capacity());
+            result.put("maxError", summary.maxError());
+            result.put("top", summary.top(k));
+            return result;
+        });
+    }
+
+    /**
+     * 以下几个方法都在计算线程池中被调用，并行流会使用调用者所在的 ForkJoinPool
+     */
+    private Map<Integer, Long> normalUse() {
         ConcurrentMap<Integer, Long> concurrentHashMap = new ConcurrentHashMap<>();
-        ForkJoinPool forkJoinPool = new ForkJoinPool(THREAD_COUNT);
-        forkJoinPool.execute(new Runnable() {
+        IntStream.rangeClosed(1, LOOP_COUNT).parallel().forEach(new IntConsumer() {
             @Override
-            public void run() {
-                IntStream.rangeClosed(1, LOOP_COUNT).parallel().forEach(new IntConsumer() {
-                    @Override
-                    public void accept(int value) {
-                        final Integer key = ThreadLocalRandom.current().nextInt(ITEM_COUNT);
-                        synchronized (concurrentHashMap) {
-                            if(concurrentHashMap.containsKey(key)) {
-                                concurrentHashMap.put(key, concurrentHashMap.get(key)+1);
-                            } else {
-                                concurrentHashMap.put(key, 1L);
-                            }
-                        }
+            public void accept(int value) {
+                final Integer key = ThreadLocalRandom.current().nextInt(ITEM_COUNT);
+                synchronized (concurrentHashMap) {
+                    if(concurrentHashMap.containsKey(key)) {
+                        concurrentHashMap.put(key, concurrentHashMap.get(key)+1);
+                    } else {
+                        concurrentHashMap.put(key, 1L);
                     }
-                });
+                }
             }
         });
-        forkJoinPool.shutdown();
-        forkJoinPool.awaitTermination(1, TimeUnit.HOURS);
         return concurrentHashMap;
     }
 
-    private Map<Integer, Long> goodUse() throws InterruptedException {
+    /**
+     * 进一步改进：key 和计数都是基本类型，计数过程不装箱，也不需要最后再复制到一个 HashMap
+     */
+    private IntLongCounterMap primitiveUse() {
+        IntLongCounterMap counterMap = new IntLongCounterMap(ITEM_COUNT);
+        IntStream.rangeClosed(1, LOOP_COUNT).parallel()
+                .forEach(i -> counterMap.increment(ThreadLocalRandom.current().nextInt(ITEM_COUNT)));
+        return counterMap;
+    }
+
+    /**
+     * 再进一步：每个分段先在私有的 long[] 里计数，分段结束时合并一次，计数过程完全没有线程间共享的写入
+     */
+    private Map<Integer, Long> preAggregatedUse() {
+        long[] counts = CountingCollectors.count(IntStream.rangeClosed(1, LOOP_COUNT).parallel()
+                .map(i -> ThreadLocalRandom.current().nextInt(ITEM_COUNT)), ITEM_COUNT);
+        return CountingCollectors.toMap(counts);
+    }
+
+    private Map<Integer, Long> goodUse() {
         ConcurrentMap<Integer, LongAdder> concurrentHashMap = new ConcurrentHashMap<>();
-        ForkJoinPool forkJoinPool = new ForkJoinPool(THREAD_COUNT);
-        forkJoinPool.execute(new Runnable() {
+        IntStream.rangeClosed(1, LOOP_COUNT).parallel().forEach(new IntConsumer() {
             @Override
-            public void run() {
-                IntStream.rangeClosed(1, LOOP_COUNT).parallel().forEach(new IntConsumer() {
+            public void accept(int value) {
+                final Integer key = ThreadLocalRandom.current().nextInt(ITEM_COUNT);
+                // 改进：使用 ConcurrentHashMap 的原子性方法 computeIfAbsent 来做复合逻辑操作
+                concurrentHashMap.computeIfAbsent(key, new Function<Integer, LongAdder>() {
                     @Override
-                    public void accept(int value) {
-                        final Integer key = ThreadLocalRandom.current().nextInt(ITEM_COUNT);
-                        // 改进：使用 ConcurrentHashMap 的原子性方法 computeIfAbsent 来做复合逻辑操作
-                        concurrentHashMap.computeIfAbsent(key, new Function<Integer, LongAdder>() {
-                            @Override
-                            public LongAdder apply(Integer s) {
-                                return new LongAdder();
-                            }
-                        }).increment();
+                    public LongAdder apply(Integer s) {
+                        return new LongAdder();
                     }
-                });
+                }).increment();
             }
         });
-        forkJoinPool.shutdown();
-        forkJoinPool.awaitTermination(1, TimeUnit.HOURS);
 
         HashMap<Integer, Long> hashMap = new HashMap<>();
         for (Map.Entry<Integer, LongAdder> entry : concurrentHashMap.entrySet()) {
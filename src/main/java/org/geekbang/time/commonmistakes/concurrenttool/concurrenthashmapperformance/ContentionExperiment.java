@@ -0,0 +1,182 @@
+package org.geekbang.time.commonmistakes.concurrenttool.concurrenthashmapperformance;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.function.IntSupplier;
+import java.util.stream.IntStream;
+
+/**
+ * 并发计数的对比实验：每种计数方式先预热 warmupIterations 轮，再测量 iterations 轮，每轮并行地计数 loopCount 次
+ * <p>
+ *     必须在目标 ForkJoinPool 的线程中调用 run()，并行流才会使用这个线程池，线程数也就由这个线程池的并行度决定。
+ *     key 在实验开始前生成好，每轮的计数器也在计时之前创建，耗时和内存分配只包括并发计数本身。<br>
+ *     内存分配量来自 com.sun.management.ThreadMXBean，只统计测量期间调用者所在 ForkJoinPool 的工作线程分配的字节数，
+ *     不包括其它线程池上同时运行的请求；测量期间退出的工作线程分配的字节数会丢失。JVM 不支持时返回 -1。
+ * </p>
+ */
+public class ContentionExperiment {
+
+    private static final int MIN_KEY_BUFFER_SIZE = 1 << 16;
+
+    private final List<CountingStrategy> strategies;
+
+    private final int loopCount;
+
+    private final int itemCount;
+
+    private final KeyDistribution distribution;
+
+    private final int warmupIterations;
+
+    private final int iterations;
+
+    public ContentionExperiment(List<CountingStrategy> strategies, int loopCount, int itemCount,
+                                KeyDistribution distribution, int warmupIterations, int iterations) {
+        if (strategies.isEmpty() || loopCount <= 0 || itemCount <= 0 || warmupIterations < 0 || iterations <= 0) {
+            throw new IllegalArgumentException("strategies 不能为空，loopCount、itemCount、iterations 必须大于 0，warmupIterations 不能小于 0");
+        }
+        this.strategies = strategies;
+        this.loopCount = loopCount;
+        this.itemCount = itemCount;
+        this.distribution = distribution;
+        this.warmupIterations = warmupIterations;
+        this.iterations = iterations;
+    }
+
+    /**
+     * @return 每种计数方式的吞吐量、每轮耗时的分位数和每次计数分配的字节数
+     */
+    public Map<String, Object> run() {
+        int[] keys = this.generateKeys();
+        Map<String, Object> results = new LinkedHashMap<>();
+        for (CountingStrategy strategy : strategies) {
+            for (int i = 0; i < warmupIterations; i++) {
+                this.increment(strategy.create(itemCount), keys);
+            }
+            long[] nanos = new long[iterations];
+            long allocatedBytes = 0;
+            KeyCounter counter = null;
+            for (int i = 0; i < iterations; i++) {
+                // 创建计数器不计入耗时和内存分配，只测量计数本身
+                counter = strategy.create(itemCount);
+                Map<Long, Long> allocatedBefore = allocatedBytes();
+                long start = System.nanoTime();
+                this.increment(counter, keys);
+                nanos[i] = System.nanoTime() - start;
+                long allocated = allocatedDelta(allocatedBefore, allocatedBytes());
+                allocatedBytes = allocated < 0 || allocatedBytes < 0 ? -1 : allocatedBytes + allocated;
+            }
+            long total = counter.snapshot().values().stream().mapToLong(Long::longValue).sum();
+            if (total != loopCount) {
+                throw new IllegalStateException(strategy + " count error, expected " + loopCount + " but was " + total);
+            }
+            results.put(strategy.name(), this.summarize(nanos, allocatedBytes));
+        }
+        return results;
+    }
+
+    /**
+     * 和 CountingBenchmark 一样预先按分布生成 key，计数时只读数组，不包括生成随机数和 Zipf 的二分查找。
+     * 数组长度是 2 的幂，至少是 key 种类的 4 倍（不会只覆盖一小部分 key），最多 loopCount 个，计数时循环使用
+     */
+    private int[] generateKeys() {
+        int length = ceilingPowerOfTwo(Math.min(loopCount, Math.max(MIN_KEY_BUFFER_SIZE, itemCount * 4)));
+        IntSupplier generator = distribution.generator(itemCount);
+        int[] keys = new int[length];
+        for (int i = 0; i < length; i++) {
+            keys[i] = generator.getAsInt();
+        }
+        return keys;
+    }
+
+    private void increment(KeyCounter counter, int[] keys) {
+        int mask = keys.length - 1;
+        IntStream.range(0, loopCount).parallel().forEach(i -> counter.increment(keys[i & mask]));
+    }
+
+    private static int ceilingPowerOfTwo(int value) {
+        return value <= 1 ? 1 : Integer.highestOneBit(value - 1) << 1;
+    }
+
+    private Map<String, Object> summarize(long[] nanos, long allocatedBytes) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        double meanNanos = Arrays.stream(sorted).average().orElse(0);
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("opsPerSecond", Math.round(loopCount / (meanNanos / 1e9)));
+        result.put("meanMillis", toMillis(meanNanos));
+        result.put("minMillis", toMillis(sorted[0]));
+        result.put("p50Millis", toMillis(percentile(sorted, 50)));
+        result.put("p90Millis", toMillis(percentile(sorted, 90)));
+        result.put("p99Millis", toMillis(percentile(sorted, 99)));
+        result.put("maxMillis", toMillis(sorted[sorted.length - 1]));
+        result.put("allocatedBytes", allocatedBytes);
+        result.put("allocatedBytesPerOp", allocatedBytes < 0 ? -1 : (double) allocatedBytes / ((long) loopCount * iterations));
+        return result;
+    }
+
+    /**
+     * 最近秩法求分位数
+     */
+    private static long percentile(long[] sorted, double percentile) {
+        int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    private static double toMillis(double nanos) {
+        return Math.round(nanos / 1e3) / 1e3;
+    }
+
+    /**
+     * 两次采样之间的分配量，测量期间新创建的工作线程从 0 开始算
+     */
+    private static long allocatedDelta(Map<Long, Long> before, Map<Long, Long> after) {
+        if (before == null || after == null) {
+            return -1;
+        }
+        long delta = 0;
+        for (Map.Entry<Long, Long> entry : after.entrySet()) {
+            delta += entry.getValue() - before.getOrDefault(entry.getKey(), 0L);
+        }
+        return delta;
+    }
+
+    /**
+     * 调用者所在 ForkJoinPool 的每个存活工作线程累计分配的字节数，key 是线程 id；不支持时返回 null
+     */
+    private static Map<Long, Long> allocatedBytes() {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (!(threadMXBean instanceof com.sun.management.ThreadMXBean)) {
+            return null;
+        }
+        com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadMXBean;
+        if (!allocationBean.isThreadAllocatedMemorySupported()) {
+            return null;
+        }
+        if (!allocationBean.isThreadAllocatedMemoryEnabled()) {
+            allocationBean.setThreadAllocatedMemoryEnabled(true);
+        }
+        ForkJoinPool pool = ForkJoinTask.getPool();
+        long[] threadIds = Thread.getAllStackTraces().keySet().stream()
+                .filter(thread -> pool == null ? thread == Thread.currentThread()
+                        : thread instanceof ForkJoinWorkerThread && ((ForkJoinWorkerThread) thread).getPool() == pool)
+                .mapToLong(Thread::getId)
+                .toArray();
+        long[] bytes = allocationBean.getThreadAllocatedBytes(threadIds);
+        Map<Long, Long> allocated = new HashMap<>();
+        for (int i = 0; i < threadIds.length; i++) {
+            if (bytes[i] > 0) {
+                allocated.put(threadIds[i], bytes[i]);
+            }
+        }
+        return allocated;
+    }
+}
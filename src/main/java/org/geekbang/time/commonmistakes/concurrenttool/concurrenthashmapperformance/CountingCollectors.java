@@ -0,0 +1,67 @@
+package org.geekbang.time.commonmistakes.concurrenttool.concurrenthashmapperformance;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Collector;
+import java.util.stream.IntStream;
+
+/**
+ * 先局部汇总再合并的计数
+ * <p>
+ *     并行流把数据切分成多段，每段由一个 ForkJoin 线程处理，Collector 为每段创建一个私有的 long[]，
+ *     段内计数只写自己的数组，没有任何共享变量，也就没有锁、CAS 和缓存行在 CPU 核之间来回传递；
+ *     每段处理完后由 combiner 合并一次。适用于 key 是 [0, cardinality) 之间的整数、并且只需要最终结果的场景。<br>
+ *     不要用 ThreadLocal 保存每个线程的局部计数：ForkJoin 的工作线程一直存活，计数结束后没有地方调用 remove()，
+ *     每次计数留下的 long[] 都会残留在这些线程上。
+ * </p>
+ */
+public final class CountingCollectors {
+
+    private CountingCollectors() {
+    }
+
+    /**
+     * 统计 Stream 中每个 key 出现的次数，key 必须在 [0, cardinality) 之间
+     */
+    public static Collector<Integer, long[], Map<Integer, Long>> counting(int cardinality) {
+        return Collector.of(
+                () -> new long[cardinality],
+                (counts, key) -> counts[key]++,
+                CountingCollectors::merge,
+                CountingCollectors::toMap,
+                Collector.Characteristics.UNORDERED);
+    }
+
+    /**
+     * IntStream 没有 Collector，用三参数的 collect 实现同样的效果，key 不需要装箱
+     *
+     * @return 下标是 key，值是出现次数
+     */
+    public static long[] count(IntStream keys, int cardinality) {
+        return keys.collect(() -> new long[cardinality], (counts, key) -> counts[key]++, CountingCollectors::mergeInto);
+    }
+
+    /**
+     * 只保留出现过的 key
+     */
+    public static Map<Integer, Long> toMap(long[] counts) {
+        Map<Integer, Long> map = new HashMap<>();
+        for (int key = 0; key < counts.length; key++) {
+            if (counts[key] != 0) {
+                map.put(key, counts[key]);
+            }
+        }
+        return map;
+    }
+
+    private static long[] merge(long[] left, long[] right) {
+        mergeInto(left, right);
+        return left;
+    }
+
+    private static void mergeInto(long[] target, long[] source) {
+        for (int i = 0; i < target.length; i++) {
+            target[i] += source[i];
+        }
+    }
+}
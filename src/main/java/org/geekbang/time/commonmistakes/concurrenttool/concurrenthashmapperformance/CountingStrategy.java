@@ -0,0 +1,143 @@
+package org.geekbang.time.commonmistakes.concurrenttool.concurrenthashmapperformance;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntFunction;
+
+/**
+ * 并发计数的几种实现方式，供 Controller 和 JMH 基准测试（src/jmh/java）共用
+ */
+public enum CountingStrategy {
+
+    /** normalUse()：整个 map 加锁，先 containsKey 再 put */
+    SYNCHRONIZED(cardinality -> new SynchronizedCounter()),
+
+    /** goodUse()：computeIfAbsent 拿到 key 对应的 LongAdder 再自增 */
+    COMPUTE_IF_ABSENT_LONG_ADDER(cardinality -> new LongAdderCounter()),
+
+    /** merge(key, 1L, Long::sum)，每次自增都会装箱一个新的 Long */
+    MERGE(cardinality -> new MergeCounter()),
+
+    /** compute(key, (k, v) -> v == null ? 1 : v + 1)，和 merge 一样要装箱 */
+    COMPUTE(cardinality -> new ComputeCounter()),
+
+    /** key 就是数组下标，只适用于 [0, cardinality) 的稠密 key，完全没有哈希和装箱 */
+    ATOMIC_LONG_ARRAY(AtomicLongArrayCounter::new),
+
+    /** 分段锁 + HashMap */
+    STRIPED_LOCK(cardinality -> new StripedLockCounter(Runtime.getRuntime().availableProcessors() * 4)),
+
+    /** 开放寻址的 int 到 long 计数 map，计数分散在多份数组上，不装箱不分配对象 */
+    INT_LONG_COUNTER_MAP(IntLongCounterMap::new);
+
+    private final IntFunction<KeyCounter> factory;
+
+    CountingStrategy(IntFunction<KeyCounter> factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * @param cardinality key 的取值范围是 [0, cardinality)
+     */
+    public KeyCounter create(int cardinality) {
+        return factory.apply(cardinality);
+    }
+
+    private static class SynchronizedCounter implements KeyCounter {
+
+        private final ConcurrentMap<Integer, Long> counts = new ConcurrentHashMap<>();
+
+        @Override
+        public void increment(int key) {
+            synchronized (counts) {
+                if (counts.containsKey(key)) {
+                    counts.put(key, counts.get(key) + 1);
+                } else {
+                    counts.put(key, 1L);
+                }
+            }
+        }
+
+        @Override
+        public Map<Integer, Long> snapshot() {
+            return new HashMap<>(counts);
+        }
+    }
+
+    private static class LongAdderCounter implements KeyCounter {
+
+        private final ConcurrentMap<Integer, LongAdder> counts = new ConcurrentHashMap<>();
+
+        @Override
+        public void increment(int key) {
+            counts.computeIfAbsent(key, k -> new LongAdder()).increment();
+        }
+
+        @Override
+        public Map<Integer, Long> snapshot() {
+            Map<Integer, Long> snapshot = new HashMap<>();
+            counts.forEach((key, count) -> snapshot.put(key, count.longValue()));
+            return snapshot;
+        }
+    }
+
+    private static class MergeCounter implements KeyCounter {
+
+        private final ConcurrentMap<Integer, Long> counts = new ConcurrentHashMap<>();
+
+        @Override
+        public void increment(int key) {
+            counts.merge(key, 1L, Long::sum);
+        }
+
+        @Override
+        public Map<Integer, Long> snapshot() {
+            return new HashMap<>(counts);
+        }
+    }
+
+    private static class ComputeCounter implements KeyCounter {
+
+        private final ConcurrentMap<Integer, Long> counts = new ConcurrentHashMap<>();
+
+        @Override
+        public void increment(int key) {
+            counts.compute(key, (k, v) -> v == null ? 1L : v + 1);
+        }
+
+        @Override
+        public Map<Integer, Long> snapshot() {
+            return new HashMap<>(counts);
+        }
+    }
+
+    private static class AtomicLongArrayCounter implements KeyCounter {
+
+        private final AtomicLongArray counts;
+
+        AtomicLongArrayCounter(int cardinality) {
+            counts = new AtomicLongArray(cardinality);
+        }
+
+        @Override
+        public void increment(int key) {
+            counts.incrementAndGet(key);
+        }
+
+        @Override
+        public Map<Integer, Long> snapshot() {
+            Map<Integer, Long> snapshot = new HashMap<>();
+            for (int key = 0; key < counts.length(); key++) {
+                long count = counts.get(key);
+                if (count != 0) {
+                    snapshot.put(key, count);
+                }
+            }
+            return snapshot;
+        }
+    }
+}
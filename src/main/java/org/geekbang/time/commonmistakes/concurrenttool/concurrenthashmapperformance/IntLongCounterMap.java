@@ -0,0 +1,276 @@
+package org.geekbang.time.commonmistakes.concurrenttool.concurrenthashmapperformance;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * int 到 long 的并发计数 map，计数过程不装箱、不分配任何对象
+ * <p>
+ *     key 保存在开放寻址（线性探测）的 int 数组里，第一次出现的 key 通过 CAS 抢占一个空槽位，之后的自增只需要读数组。<br>
+ *     计数分成 stripes 份独立的 long 数组（类似 LongAdder 的 Cell），每个线程从一个随机的探针值开始选择其中一份，
+ *     自增用 CAS，CAS 失败说明有其它线程在同时写同一份数组里的同一个计数，这时和 LongAdder 一样换一个探针值，下次改用另一份数组，
+ *     所以线程数不超过份数时，同时自增同一个热点 key 的线程最终会分散到不同的数组上。读取时把所有份的计数相加。
+ * </p>
+ * <p>
+ *     每个计数占 stride 个 long，stride 为 8 时一个计数独占一个缓存行，同一份数组里相邻 key 的计数也不会伪共享；
+ *     每份数组首尾再各留出一个缓存行，相邻分配的两份数组也不会伪共享。<br>
+ *     份数 × 容量 × stride 个 long 超过 MAX_CELLS 时，先把份数减半，减到 1 份后再把 stride 减半，
+ *     所以内存占用最多是 MAX_CELLS 个 long（32MB），或者容量本身超过它时的 容量 个 long。
+ *     key 很多时每个 key 分到的自增很少，分成多份和填充的收益也随之变小。
+ *     和 LongAdder 相比的吞吐量以 CountingBenchmark 的 INT_LONG_COUNTER_MAP 和 COMPUTE_IF_ABSENT_LONG_ADDER 的实测结果为准。
+ * </p>
+ * <p>
+ *     容量在构造时固定，不会扩容，key 的个数超过容量时 increment 抛出 IllegalStateException；
+ *     Integer.MIN_VALUE 用来标记空槽位，不能作为 key。
+ * </p>
+ */
+public class IntLongCounterMap implements KeyCounter {
+
+    private static final int EMPTY = Integer.MIN_VALUE;
+
+    /** 一个缓存行（64 字节）能放下的 long 个数 */
+    private static final int PAD = 8;
+
+    /** 默认构造时计数份数的上限 */
+    private static final int MAX_DEFAULT_STRIPES = 16;
+
+    /** 所有份的计数数组合计最多的 long 个数（填充也算在内） */
+    private static final int MAX_CELLS = 1 << 22;
+
+    /**
+     * 每个线程的探针值，所有实例共用一个 ThreadLocal，每个线程只有这一个 int[1]，不会随着实例的创建而增加
+     */
+    private static final ThreadLocal<int[]> PROBE = ThreadLocal.withInitial(() -> new int[]{ThreadLocalRandom.current().nextInt() | 1});
+
+    private final AtomicIntegerArray keys;
+
+    private final AtomicLongArray[] cells;
+
+    private final int mask;
+
+    private final int stripeMask;
+
+    /** 每个计数占用的 long 个数 */
+    private final int stride;
+
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * 和 LongAdder 的 Cell 个数上限一样按 CPU 核数作为计数的份数（同时运行的线程数不会超过核数），最多 MAX_DEFAULT_STRIPES 份
+     */
+    public IntLongCounterMap(int expectedKeys) {
+        this(expectedKeys, Math.min(MAX_DEFAULT_STRIPES, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * @param expectedKeys 最多的 key 个数，容量取它的两倍向上取整到 2 的幂，装载因子不超过 0.5
+     * @param stripes      计数的份数，会向上取整到 2 的幂，超出内存上限时会减少
+     */
+    public IntLongCounterMap(int expectedKeys, int stripes) {
+        if (expectedKeys <= 0 || expectedKeys > 1 << 29 || stripes <= 0) {
+            throw new IllegalArgumentException("expectedKeys 必须在 (0, 2^29] 之间，stripes 必须大于 0");
+        }
+        int capacity = ceilingPowerOfTwo(expectedKeys * 2);
+        this.keys = new AtomicIntegerArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            keys.set(i, EMPTY);
+        }
+        this.mask = capacity - 1;
+        int stripeCount = ceilingPowerOfTwo(stripes);
+        int cellStride = PAD;
+        while ((long) stripeCount * capacity * cellStride > MAX_CELLS && (stripeCount > 1 || cellStride > 1)) {
+            if (stripeCount > 1) {
+                stripeCount >>= 1;
+            } else {
+                cellStride >>= 1;
+            }
+        }
+        this.stride = cellStride;
+        this.cells = new AtomicLongArray[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            cells[i] = new AtomicLongArray(PAD + capacity * stride + PAD);
+        }
+        this.stripeMask = stripeCount - 1;
+    }
+
+    @Override
+    public void increment(int key) {
+        this.add(key, 1);
+    }
+
+    public void add(int key, long delta) {
+        int index = PAD + this.claimSlot(key) * stride;
+        int[] probe = PROBE.get();
+        while (true) {
+            AtomicLongArray stripe = cells[probe[0] & stripeMask];
+            long current = stripe.get(index);
+            if (stripe.compareAndSet(index, current, current + delta)) {
+                return;
+            }
+            probe[0] = advanceProbe(probe[0]);
+        }
+    }
+
+    /**
+     * key 的当前计数，不存在时返回 0
+     */
+    public long get(int key) {
+        int slot = this.findSlot(key);
+        return slot < 0 ? 0 : this.sum(slot);
+    }
+
+    /**
+     * 出现过的 key 的个数
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * 所有 key 的计数之和
+     */
+    public long total() {
+        long total = 0;
+        for (AtomicLongArray stripe : cells) {
+            for (int i = PAD; i < stripe.length() - PAD; i += stride) {
+                total += stripe.get(i);
+            }
+        }
+        return total;
+    }
+
+    /**
+     * 遍历所有 key 和计数，不装箱
+     */
+    public void forEach(IntLongConsumer consumer) {
+        Cursor cursor = this.cursor();
+        while (cursor.advance()) {
+            consumer.accept(cursor.key(), cursor.value());
+        }
+    }
+
+    /**
+     * 返回一个游标，用 advance() / key() / value() 遍历，整个遍历过程只分配游标这一个对象
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    @Override
+    public Map<Integer, Long> snapshot() {
+        Map<Integer, Long> snapshot = new HashMap<>(size.get() * 2);
+        this.forEach(snapshot::put);
+        return snapshot;
+    }
+
+    /**
+     * 找到 key 所在的槽位，key 第一次出现时通过 CAS 抢占一个空槽位
+     */
+    private int claimSlot(int key) {
+        if (key == EMPTY) {
+            throw new IllegalArgumentException("key 不能是 Integer.MIN_VALUE");
+        }
+        int slot = mix(key) & mask;
+        for (int probes = 0; probes <= mask; probes++) {
+            int current = keys.get(slot);
+            if (current == key) {
+                return slot;
+            }
+            if (current == EMPTY) {
+                if (keys.compareAndSet(slot, EMPTY, key)) {
+                    size.incrementAndGet();
+                    return slot;
+                }
+                // 被其它线程抢先占用，可能正好是同一个 key
+                if (keys.get(slot) == key) {
+                    return slot;
+                }
+            }
+            slot = (slot + 1) & mask;
+        }
+        throw new IllegalStateException("IntLongCounterMap 已满，容量 " + (mask + 1));
+    }
+
+    private int findSlot(int key) {
+        int slot = mix(key) & mask;
+        for (int probes = 0; probes <= mask; probes++) {
+            int current = keys.get(slot);
+            if (current == key) {
+                return slot;
+            }
+            if (current == EMPTY) {
+                return -1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private long sum(int slot) {
+        long sum = 0;
+        for (AtomicLongArray stripe : cells) {
+            sum += stripe.get(PAD + slot * stride);
+        }
+        return sum;
+    }
+
+    /**
+     * 和 ThreadLocalRandom.advanceProbe 一样的 xorshift
+     */
+    private static int advanceProbe(int probe) {
+        probe ^= probe << 13;
+        probe ^= probe >>> 17;
+        probe ^= probe << 5;
+        return probe;
+    }
+
+    private static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static int ceilingPowerOfTwo(int value) {
+        return value <= 1 ? 1 : Integer.highestOneBit(value - 1) << 1;
+    }
+
+    @FunctionalInterface
+    public interface IntLongConsumer {
+        void accept(int key, long value);
+    }
+
+    /**
+     * 按槽位顺序遍历的游标，遍历时其它线程仍然可以计数，读到的是每个 key 在读取那一刻的计数
+     */
+    public class Cursor {
+
+        private int slot = -1;
+
+        private int key;
+
+        private long value;
+
+        public boolean advance() {
+            while (++slot <= mask) {
+                int current = keys.get(slot);
+                if (current != EMPTY) {
+                    key = current;
+                    value = sum(slot);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public int key() {
+            return key;
+        }
+
+        public long value() {
+            return value;
+        }
+    }
+}
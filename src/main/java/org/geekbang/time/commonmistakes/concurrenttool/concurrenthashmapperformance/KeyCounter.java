@@ -0,0 +1,19 @@
+package org.geekbang.time.commonmistakes.concurrenttool.concurrenthashmapperformance;
+
+import java.util.Map;
+
+/**
+ * 多线程并发地按 key 计数
+ */
+public interface KeyCounter {
+
+    /**
+     * 给 key 的计数加 1，可以被多个线程同时调用
+     */
+    void increment(int key);
+
+    /**
+     * 所有 key 的计数，在所有 increment 都完成之后调用才是准确的
+     */
+    Map<Integer, Long> snapshot();
+}
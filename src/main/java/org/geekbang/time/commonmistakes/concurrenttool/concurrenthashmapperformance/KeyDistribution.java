@@ -0,0 +1,32 @@
+package org.geekbang.time.commonmistakes.concurrenttool.concurrenthashmapperformance;
+
+import org.geekbang.time.commonmistakes.common.ZipfianGenerator;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.IntSupplier;
+
+/**
+ * 计数时 key 的分布：均匀分布时竞争分散在所有 key 上，Zipf 分布时大部分自增集中在少数几个热点 key 上
+ */
+public enum KeyDistribution {
+
+    UNIFORM {
+        @Override
+        public IntSupplier generator(int cardinality) {
+            return () -> ThreadLocalRandom.current().nextInt(cardinality);
+        }
+    },
+
+    ZIPF {
+        @Override
+        public IntSupplier generator(int cardinality) {
+            ZipfianGenerator zipfian = new ZipfianGenerator(cardinality, 0.99);
+            return zipfian::next;
+        }
+    };
+
+    /**
+     * 生成 [0, cardinality) 之间的 key，返回的 IntSupplier 可以被多个线程共享
+     */
+    public abstract IntSupplier generator(int cardinality);
+}
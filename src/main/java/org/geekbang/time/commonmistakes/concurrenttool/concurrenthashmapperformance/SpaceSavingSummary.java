@@ -0,0 +1,219 @@
+package org.geekbang.time.commonmistakes.concurrenttool.concurrenthashmapperformance;
+
+import lombok.Value;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Space-Saving 算法的摘要：最多只记录 capacity 个 key 的计数，内存与 key 的总数无关（非线程安全）
+ * <p>
+ *     新 key 到来且计数器已满时，替换掉计数最小的那个 key，新 key 继承它的计数（记为 error）再加上本次的权重。<br>
+ *     误差保证：设总权重为 N，任意 key 的估计值 count 满足 count - error ≤ 真实值 ≤ count，且 error ≤ N / capacity；
+ *     真实值超过 N / capacity 的 key 一定在摘要中。
+ * </p>
+ * <p>
+ *     两个摘要可以合并（Agarwal 等人的 mergeable summaries）：一个 key 只出现在一边时，另一边已满的话按另一边的最小计数补上
+ *     （这是它在另一边可能的最大值），然后保留计数最大的 capacity 个 key，合并后的误差仍然不超过 (N1 + N2) / capacity，
+ *     所以可以在线程之间、节点之间任意合并。
+ * </p>
+ */
+public class SpaceSavingSummary implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int capacity;
+
+    /** 按 count 排列的最小堆，heap[0] 是计数最小的 key */
+    private final Counter[] heap;
+
+    private final Map<Integer, Counter> counters;
+
+    private int size;
+
+    private long total;
+
+    public SpaceSavingSummary(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity 必须大于 0");
+        }
+        this.capacity = capacity;
+        this.heap = new Counter[capacity];
+        this.counters = new HashMap<>(capacity * 2);
+    }
+
+    public void add(int key, long weight) {
+        if (weight <= 0) {
+            throw new IllegalArgumentException("weight 必须大于 0");
+        }
+        total += weight;
+        Counter counter = counters.get(key);
+        if (counter != null) {
+            counter.count += weight;
+            siftDown(counter.index);
+            return;
+        }
+        if (size < capacity) {
+            counter = new Counter(key, weight, 0);
+            counter.index = size;
+            heap[size++] = counter;
+            counters.put(key, counter);
+            siftUp(counter.index);
+            return;
+        }
+        // 替换计数最小的 key，复用它的 Counter 对象
+        counter = heap[0];
+        counters.remove(counter.key);
+        counter.key = key;
+        counter.error = counter.count;
+        counter.count += weight;
+        counters.put(key, counter);
+        siftDown(0);
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * 累计的总权重 N
+     */
+    public long total() {
+        return total;
+    }
+
+    /**
+     * 任意 key 估计值的误差上限 N / capacity
+     */
+    public long maxError() {
+        return total / capacity;
+    }
+
+    /**
+     * 估计值最大的 k 个 key，按估计值从大到小排列
+     */
+    public List<Estimate> top(int k) {
+        return counters.values().stream()
+                .sorted(Comparator.comparingLong((Counter counter) -> counter.count).reversed())
+                .limit(k)
+                .map(counter -> new Estimate(counter.key, counter.count, counter.error))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * 合并两个摘要，返回新的摘要，两个输入都不会被修改
+     */
+    public SpaceSavingSummary merge(SpaceSavingSummary other) {
+        int mergedCapacity = Math.max(capacity, other.capacity);
+        // 只出现在一边的 key，在另一边可能的最大计数：另一边没满时是 0，满了是它的最小计数
+        long thisMin = size == capacity ? heap[0].count : 0;
+        long otherMin = other.size == other.capacity ? other.heap[0].count : 0;
+        Map<Integer, Counter> merged = new HashMap<>();
+        for (Counter counter : counters.values()) {
+            merged.put(counter.key, new Counter(counter.key, counter.count + otherMin, counter.error + otherMin));
+        }
+        for (Counter counter : other.counters.values()) {
+            Counter existing = merged.get(counter.key);
+            if (existing == null) {
+                merged.put(counter.key, new Counter(counter.key, counter.count + thisMin, counter.error + thisMin));
+            } else {
+                // 前面按“只出现在这边”补了 otherMin，换成另一边的真实计数
+                existing.count += counter.count - otherMin;
+                existing.error += counter.error - otherMin;
+            }
+        }
+        List<Counter> kept = new ArrayList<>(merged.values());
+        kept.sort(Comparator.comparingLong((Counter counter) -> counter.count).reversed());
+        SpaceSavingSummary result = new SpaceSavingSummary(mergedCapacity);
+        for (Counter counter : kept.subList(0, Math.min(mergedCapacity, kept.size()))) {
+            counter.index = result.size;
+            result.heap[result.size++] = counter;
+            result.counters.put(counter.key, counter);
+        }
+        for (int i = result.size / 2 - 1; i >= 0; i--) {
+            result.siftDown(i);
+        }
+        result.total = total + other.total;
+        return result;
+    }
+
+    private void siftUp(int index) {
+        Counter counter = heap[index];
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (heap[parent].count <= counter.count) {
+                break;
+            }
+            place(heap[parent], index);
+            index = parent;
+        }
+        place(counter, index);
+    }
+
+    private void siftDown(int index) {
+        Counter counter = heap[index];
+        int half = size >>> 1;
+        while (index < half) {
+            int child = 2 * index + 1;
+            int right = child + 1;
+            if (right < size && heap[right].count < heap[child].count) {
+                child = right;
+            }
+            if (counter.count <= heap[child].count) {
+                break;
+            }
+            place(heap[child], index);
+            index = child;
+        }
+        place(counter, index);
+    }
+
+    private void place(Counter counter, int index) {
+        heap[index] = counter;
+        counter.index = index;
+    }
+
+    private static class Counter implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private int key;
+
+        private long count;
+
+        private long error;
+
+        private int index;
+
+        Counter(int key, long count, long error) {
+            this.key = key;
+            this.count = count;
+            this.error = error;
+        }
+    }
+
+    /**
+     * 一个 key 的估计值：真实值在 [count - error, count] 之间
+     */
+    @Value
+    public static class Estimate {
+
+        int key;
+
+        long count;
+
+        long error;
+
+        /**
+         * 真实值的下限
+         */
+        public long getGuaranteedCount() {
+            return count - error;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package org.geekbang.time.commonmistakes.concurrenttool.concurrenthashmapperformance;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 分段锁计数：key 按哈希分到 stripes 个段，每个段是一把锁加一个普通的 HashMap
+ * <p>
+ *     不同段的 key 可以并发地计数，只有落在同一个段上的 key 才会竞争同一把锁，
+ *     相当于 JDK 7 的 ConcurrentHashMap 的 Segment 思路。
+ * </p>
+ */
+public class StripedLockCounter implements KeyCounter {
+
+    private final Stripe[] stripes;
+
+    private final int mask;
+
+    /**
+     * @param stripes 段数，会向上取整到 2 的幂
+     */
+    public StripedLockCounter(int stripes) {
+        if (stripes <= 0) {
+            throw new IllegalArgumentException("stripes 必须大于 0");
+        }
+        int size = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+        this.stripes = new Stripe[size];
+        for (int i = 0; i < size; i++) {
+            this.stripes[i] = new Stripe();
+        }
+        this.mask = size - 1;
+    }
+
+    @Override
+    public void increment(int key) {
+        Stripe stripe = stripes[spread(key) & mask];
+        synchronized (stripe) {
+            long[] count = stripe.counts.get(key);
+            if (count == null) {
+                stripe.counts.put(key, new long[]{1});
+            } else {
+                count[0]++;
+            }
+        }
+    }
+
+    @Override
+    public Map<Integer, Long> snapshot() {
+        Map<Integer, Long> snapshot = new HashMap<>();
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.counts.forEach((key, count) -> snapshot.put(key, count[0]));
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * 打散相邻的 key，避免连续的 key 落在相邻的段上
+     */
+    private static int spread(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static class Stripe {
+        /** 计数放在 long[1] 里，自增时不需要重新装箱 */
+        private final Map<Integer, long[]> counts = new HashMap<>();
+    }
+}
@@ -0,0 +1,88 @@
+package org.geekbang.time.commonmistakes.concurrenttool.concurrenthashmapperformance;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 并发的 top-K 计数：key 的种类再多，内存也只有 stripes × capacity 个计数器
+ * <p>
+ *     每个线程按 id 固定写入一个分段，每个分段是一个加锁保护的 SpaceSavingSummary，
+ *     不同分段的线程互不竞争；查询时把所有分段合并成一个摘要。<br>
+ *     合并后的误差上限是 N / capacity（N 为总计数），真实计数超过这个值的 key 一定会出现在结果中。
+ * </p>
+ */
+public class TopKCounter implements KeyCounter {
+
+    private final SpaceSavingSummary[] stripes;
+
+    private final int mask;
+
+    /**
+     * 在 CPU 核数和 16 之间取较小的值作为分段数
+     */
+    public TopKCounter(int capacity) {
+        this(capacity, Math.min(16, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * @param capacity 每个分段最多记录的 key 个数，决定了误差上限 N / capacity
+     * @param stripes  分段数，会向上取整到 2 的幂
+     */
+    public TopKCounter(int capacity, int stripes) {
+        if (stripes <= 0) {
+            throw new IllegalArgumentException("stripes 必须大于 0");
+        }
+        int size = stripes == 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+        this.stripes = new SpaceSavingSummary[size];
+        for (int i = 0; i < size; i++) {
+            this.stripes[i] = new SpaceSavingSummary(capacity);
+        }
+        this.mask = size - 1;
+    }
+
+    @Override
+    public void increment(int key) {
+        this.add(key, 1);
+    }
+
+    public void add(int key, long weight) {
+        SpaceSavingSummary stripe = stripes[stripe()];
+        synchronized (stripe) {
+            stripe.add(key, weight);
+        }
+    }
+
+    /**
+     * 合并所有分段，得到一个可以继续和其它节点的摘要合并的快照
+     */
+    public SpaceSavingSummary summary() {
+        SpaceSavingSummary summary = null;
+        for (SpaceSavingSummary stripe : stripes) {
+            synchronized (stripe) {
+                summary = summary == null ? stripe.merge(new SpaceSavingSummary(stripe.capacity())) : summary.merge(stripe);
+            }
+        }
+        return summary;
+    }
+
+    public List<SpaceSavingSummary.Estimate> top(int k) {
+        return this.summary().top(k);
+    }
+
+    /**
+     * 摘要中所有 key 的估计值，不是精确计数
+     */
+    @Override
+    public Map<Integer, Long> snapshot() {
+        SpaceSavingSummary summary = this.summary();
+        Map<Integer, Long> snapshot = new HashMap<>();
+        summary.top(summary.capacity()).forEach(estimate -> snapshot.put(estimate.getKey(), estimate.getCount()));
+        return snapshot;
+    }
+
+    private int stripe() {
+        int h = (int) Thread.currentThread().getId() * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
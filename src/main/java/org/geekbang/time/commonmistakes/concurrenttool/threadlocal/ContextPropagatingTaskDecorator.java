@@ -0,0 +1,17 @@
+package org.geekbang.time.commonmistakes.concurrenttool.threadlocal;
+
+import org.springframework.core.task.TaskDecorator;
+import org.springframework.stereotype.Component;
+
+/**
+ * Spring Boot 会把这个 TaskDecorator 应用到自动配置的 applicationTaskExecutor 上，
+ * @Async 方法和返回 Callable 的 Controller 方法都能拿到提交时的 RequestContext
+ */
+@Component
+public class ContextPropagatingTaskDecorator implements TaskDecorator {
+
+    @Override
+    public Runnable decorate(Runnable runnable) {
+        return RequestContexts.wrap(runnable);
+    }
+}
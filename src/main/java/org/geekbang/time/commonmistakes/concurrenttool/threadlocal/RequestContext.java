@@ -0,0 +1,64 @@
+package org.geekbang.time.commonmistakes.concurrenttool.threadlocal;
+
+import lombok.Getter;
+import lombok.Value;
+
+/**
+ * 当前请求的上下文
+ * <p>
+ *     每个线程只有一个 RequestContext 对象，请求开始时填入字段，请求结束时清空字段，对象本身一直复用，
+ *     设置上下文不需要分配内存；清空后不再引用任何请求数据，即使留在线程池的线程里也不会串到下一个请求。
+ * </p>
+ */
+@Getter
+public final class RequestContext {
+
+    private Integer userId;
+
+    private String requestUri;
+
+    private long startNanos;
+
+    RequestContext() {
+    }
+
+    public void setUserId(Integer userId) {
+        this.userId = userId;
+    }
+
+    public boolean isEmpty() {
+        return userId == null && requestUri == null;
+    }
+
+    void begin(String requestUri) {
+        this.userId = null;
+        this.requestUri = requestUri;
+        this.startNanos = System.nanoTime();
+    }
+
+    void reset() {
+        this.userId = null;
+        this.requestUri = null;
+        this.startNanos = 0;
+    }
+
+    Snapshot snapshot() {
+        return new Snapshot(userId, requestUri, startNanos);
+    }
+
+    void copyFrom(Snapshot snapshot) {
+        this.userId = snapshot.getUserId();
+        this.requestUri = snapshot.getRequestUri();
+        this.startNanos = snapshot.getStartNanos();
+    }
+
+    /**
+     * 提交异步任务时捕获的不可变副本，在线程池的线程中恢复
+     */
+    @Value
+    public static class Snapshot {
+        Integer userId;
+        String requestUri;
+        long startNanos;
+    }
+}
@@ -0,0 +1,28 @@
+package org.geekbang.time.commonmistakes.concurrenttool.threadlocal;
+
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * 请求开始时初始化当前线程的 RequestContext，请求结束时无论是否异常都清空，Controller 不需要再自己 remove()
+ */
+@Component
+public class RequestContextCleanupFilter extends OncePerRequestFilter {
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        RequestContexts.begin(request.getRequestURI());
+        try {
+            filterChain.doFilter(request, response);
+        } finally {
+            RequestContexts.end();
+        }
+    }
+}
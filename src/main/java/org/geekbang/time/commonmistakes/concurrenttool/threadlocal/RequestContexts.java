@@ -0,0 +1,147 @@
+package org.geekbang.time.commonmistakes.concurrenttool.threadlocal;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * 访问当前线程的 RequestContext，并把它传递到线程池
+ * <p>
+ *     请求线程中的上下文由 RequestContextCleanupFilter 负责设置和清空，业务代码只需要 current() 读写，不需要自己 remove()。<br>
+ *     线程池的线程不会自动继承上下文，提交任务前用 wrap() 包装：提交时捕获一份副本，执行时恢复，执行完还原成线程原来的上下文。
+ *     注意并行流等由任务再拆分出去的子任务不经过 wrap()，拿不到上下文。
+ * </p>
+ */
+public final class RequestContexts {
+
+    private static final ThreadLocal<RequestContext> CONTEXT = ThreadLocal.withInitial(RequestContext::new);
+
+    private static final LongAdder requests = new LongAdder();
+
+    private static final LongAdder leakedOnEntry = new LongAdder();
+
+    private static final LongAdder captured = new LongAdder();
+
+    private static final LongAdder restored = new LongAdder();
+
+    private static final LongAdder propagationNanos = new LongAdder();
+
+    private RequestContexts() {
+    }
+
+    public static RequestContext current() {
+        return CONTEXT.get();
+    }
+
+    /**
+     * 包装一个任务，让它在执行时看到提交时的上下文；当前没有上下文时原样返回
+     */
+    public static Runnable wrap(Runnable task) {
+        RequestContext.Snapshot snapshot = capture();
+        if (snapshot == null) {
+            return task;
+        }
+        return () -> {
+            RequestContext.Snapshot previous = attach(snapshot);
+            try {
+                task.run();
+            } finally {
+                detach(previous);
+            }
+        };
+    }
+
+    /**
+     * 同 wrap(Runnable)，用于 CompletableFuture.supplyAsync
+     */
+    public static <T> Supplier<T> wrap(Supplier<T> supplier) {
+        RequestContext.Snapshot snapshot = capture();
+        if (snapshot == null) {
+            return supplier;
+        }
+        return () -> {
+            RequestContext.Snapshot previous = attach(snapshot);
+            try {
+                return supplier.get();
+            } finally {
+                detach(previous);
+            }
+        };
+    }
+
+    /**
+     * 包装一个线程池，提交给它的任务都会带上提交时的上下文
+     */
+    public static Executor propagating(Executor executor) {
+        return task -> executor.execute(wrap(task));
+    }
+
+    /**
+     * 请求数、入口处发现的残留上下文次数，以及传递上下文的次数和平均耗时
+     */
+    public static Map<String, Object> stats() {
+        long restoredCount = restored.sum();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("requests", requests.sum());
+        stats.put("leakedOnEntry", leakedOnEntry.sum());
+        stats.put("captured", captured.sum());
+        stats.put("restored", restoredCount);
+        stats.put("propagationNanos", propagationNanos.sum());
+        stats.put("avgPropagationNanos", restoredCount == 0 ? 0 : propagationNanos.sum() / restoredCount);
+        return stats;
+    }
+
+    /**
+     * 请求开始：正常情况下当前线程的上下文是空的，不空说明有代码绕过了 Filter 设置了上下文
+     */
+    static void begin(String requestUri) {
+        RequestContext context = CONTEXT.get();
+        if (!context.isEmpty()) {
+            leakedOnEntry.increment();
+        }
+        context.begin(requestUri);
+        requests.increment();
+    }
+
+    static void end() {
+        CONTEXT.get().reset();
+    }
+
+    private static RequestContext.Snapshot capture() {
+        long start = System.nanoTime();
+        RequestContext context = CONTEXT.get();
+        if (context.isEmpty()) {
+            return null;
+        }
+        RequestContext.Snapshot snapshot = context.snapshot();
+        captured.increment();
+        propagationNanos.add(System.nanoTime() - start);
+        return snapshot;
+    }
+
+    /**
+     * @return 线程原来的上下文，原来是空的时返回 null（线程池的线程通常如此，不需要额外分配副本）
+     */
+    private static RequestContext.Snapshot attach(RequestContext.Snapshot snapshot) {
+        long start = System.nanoTime();
+        RequestContext context = CONTEXT.get();
+        RequestContext.Snapshot previous = context.isEmpty() ? null : context.snapshot();
+        context.copyFrom(snapshot);
+        restored.increment();
+        propagationNanos.add(System.nanoTime() - start);
+        return previous;
+    }
+
+    private static void detach(RequestContext.Snapshot previous) {
+        long start = System.nanoTime();
+        RequestContext context = CONTEXT.get();
+        if (previous == null) {
+            context.reset();
+        } else {
+            context.copyFrom(previous);
+        }
+        propagationNanos.add(System.nanoTime() - start);
+    }
+}
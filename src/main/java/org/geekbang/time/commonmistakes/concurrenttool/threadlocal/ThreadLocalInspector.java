@@ -0,0 +1,224 @@
+package org.geekbang.time.commonmistakes.concurrenttool.threadlocal;
+
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.ref.Reference;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 通过反射读取线程的 ThreadLocalMap
+ * <p>
+ *     依次读取 Thread.threadLocals / inheritableThreadLocals、ThreadLocalMap.table 和 Entry.value 三个私有字段。
+ *     JDK 9 以上默认不允许反射 java.lang 的私有字段，需要加上 --add-opens java.base/java.lang=ALL-UNNAMED，否则 isAvailable() 返回 false。<br>
+ *     读取其它线程的 ThreadLocalMap 时没有同步，那个线程同时在修改时可能漏掉个别 Entry，只适合做诊断。
+ * </p>
+ */
+@Slf4j
+public class ThreadLocalInspector {
+
+    // 估算大小时最多遍历的对象个数，避免值引用了很大的对象图
+    private static final int MAX_VISITED_OBJECTS = 10000;
+    // 按开启了压缩指针的 64 位 JVM 估算
+    private static final int OBJECT_HEADER_BYTES = 12;
+    private static final int ARRAY_HEADER_BYTES = 16;
+    private static final int REFERENCE_BYTES = 4;
+
+    private final Field[] mapFields;
+
+    private final Field tableField;
+
+    private final Field valueField;
+
+    private final ConcurrentMap<Class<?>, ClassLayout> layouts = new ConcurrentHashMap<>();
+
+    public ThreadLocalInspector() {
+        Field[] mapFields = null;
+        Field tableField = null;
+        Field valueField = null;
+        try {
+            mapFields = new Field[]{accessible(Thread.class.getDeclaredField("threadLocals")),
+                    accessible(Thread.class.getDeclaredField("inheritableThreadLocals"))};
+            tableField = accessible(Class.forName("java.lang.ThreadLocal$ThreadLocalMap").getDeclaredField("table"));
+            valueField = accessible(Class.forName("java.lang.ThreadLocal$ThreadLocalMap$Entry").getDeclaredField("value"));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.warn("Cannot inspect ThreadLocalMap ({}), ThreadLocal retention profiling disabled; " +
+                    "on JDK 9+ start with --add-opens java.base/java.lang=ALL-UNNAMED", e.toString());
+            mapFields = null;
+        }
+        this.mapFields = mapFields;
+        this.tableField = tableField;
+        this.valueField = valueField;
+    }
+
+    public boolean isAvailable() {
+        return mapFields != null;
+    }
+
+    /**
+     * 线程当前持有的所有 ThreadLocal 值，ThreadLocal 本身已经被回收的 Entry 的 threadLocal 为 null
+     */
+    public List<Entry> entries(Thread thread) {
+        if (!isAvailable()) {
+            return Collections.emptyList();
+        }
+        List<Entry> entries = new ArrayList<>();
+        try {
+            for (Field mapField : mapFields) {
+                Object map = mapField.get(thread);
+                if (map == null) {
+                    continue;
+                }
+                Object[] table = (Object[]) tableField.get(map);
+                for (Object entry : table) {
+                    if (entry == null) {
+                        continue;
+                    }
+                    Object value = valueField.get(entry);
+                    if (value != null) {
+                        entries.add(new Entry((ThreadLocal<?>) ((Reference<?>) entry).get(), value));
+                    }
+                }
+            }
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+        return entries;
+    }
+
+    /**
+     * 用于统计的 ThreadLocal 名称：ThreadLocal 的类型和 identityHashCode，加上值的类型
+     */
+    public static String describe(ThreadLocal<?> threadLocal, Object value) {
+        String valueType = value == null ? "null" : value.getClass().getName();
+        if (threadLocal == null) {
+            return "<stale>(" + valueType + ")";
+        }
+        return threadLocal.getClass().getName() + "@" + Integer.toHexString(System.identityHashCode(threadLocal))
+                + "(" + valueType + ")";
+    }
+
+    /**
+     * 估算从 root 出发可达的对象一共占用多少字节
+     * <p>
+     *     不进入 Class、ClassLoader、Thread 和 ThreadLocal，最多遍历 MAX_VISITED_OBJECTS 个对象；
+     *     无法反射的字段（例如 JDK 9 以上 java.* 类的私有字段）会被跳过，所以结果偏小。
+     * </p>
+     */
+    public long approximateSize(Object root) {
+        Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<Object> pending = new ArrayDeque<>();
+        pending.push(root);
+        long bytes = 0;
+        while (!pending.isEmpty() && visited.size() < MAX_VISITED_OBJECTS) {
+            Object object = pending.pop();
+            if (isBoundary(object) || !visited.add(object)) {
+                continue;
+            }
+            Class<?> type = object.getClass();
+            if (type.isArray()) {
+                int length = Array.getLength(object);
+                Class<?> componentType = type.getComponentType();
+                bytes += align(ARRAY_HEADER_BYTES + (long) length * fieldSize(componentType));
+                if (!componentType.isPrimitive()) {
+                    for (Object element : (Object[]) object) {
+                        if (element != null) {
+                            pending.push(element);
+                        }
+                    }
+                }
+                continue;
+            }
+            ClassLayout layout = layouts.computeIfAbsent(type, ClassLayout::new);
+            bytes += layout.shallowSize;
+            for (Field field : layout.referenceFields) {
+                try {
+                    Object child = field.get(object);
+                    if (child != null) {
+                        pending.push(child);
+                    }
+                } catch (IllegalAccessException ignored) {
+                }
+            }
+        }
+        return bytes;
+    }
+
+    private static boolean isBoundary(Object object) {
+        return object instanceof Class || object instanceof ClassLoader || object instanceof Thread
+                || object instanceof ThreadLocal;
+    }
+
+    private static Field accessible(Field field) {
+        field.setAccessible(true);
+        return field;
+    }
+
+    private static int fieldSize(Class<?> type) {
+        if (type == long.class || type == double.class) {
+            return 8;
+        }
+        if (type == int.class || type == float.class) {
+            return 4;
+        }
+        if (type == short.class || type == char.class) {
+            return 2;
+        }
+        if (type == byte.class || type == boolean.class) {
+            return 1;
+        }
+        return REFERENCE_BYTES;
+    }
+
+    private static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    @Value
+    public static class Entry {
+        ThreadLocal<?> threadLocal;
+        Object value;
+    }
+
+    /**
+     * 一个类的浅大小和可以反射读取的引用字段
+     */
+    private static class ClassLayout {
+
+        private final long shallowSize;
+
+        private final List<Field> referenceFields = new ArrayList<>();
+
+        ClassLayout(Class<?> type) {
+            long size = OBJECT_HEADER_BYTES;
+            for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    if (Modifier.isStatic(field.getModifiers())) {
+                        continue;
+                    }
+                    size += fieldSize(field.getType());
+                    if (!field.getType().isPrimitive()) {
+                        try {
+                            field.setAccessible(true);
+                            referenceFields.add(field);
+                        } catch (RuntimeException ignored) {
+                        }
+                    }
+                }
+            }
+            this.shallowSize = align(size);
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package org.geekbang.time.commonmistakes.concurrenttool.threadlocal;
 
+import org.geekbang.time.commonmistakes.concurrenttool.computepool.ComputePoolRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
@@ -7,6 +9,7 @@ import org.springframework.web.bind.annotation.RestController;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 /*
 *
@@ -19,6 +22,16 @@ public class ThreadLocalMisuseController {
     // private static final ThreadLocal<Integer> currentUser = ThreadLocal.withInitial(() -> null)
     private static final ThreadLocal<Integer> currentUser = new ThreadLocal<Integer>();
 
+    // 计算线程池的名称和默认并行度
+    private final static String POOL_NAME = "threadlocal";
+    private final static int THREAD_COUNT = 2;
+
+    @Autowired
+    private ComputePoolRegistry computePoolRegistry;
+
+    @Autowired
+    private ThreadLocalRetentionProfiler threadLocalRetentionProfiler;
+
     @GetMapping("/wrong")
     public Map<String, String> wrong(@RequestParam Integer userId) {
         String before = Thread.currentThread().getName() + ":" + currentUser.get();
@@ -44,4 +57,46 @@ public class ThreadLocalMisuseController {
             currentUser.remove();
         }
     }
+
+    /**
+     * 更进一步：由 RequestContextCleanupFilter 负责清空上下文，提交到计算线程池的任务也能拿到当前用户
+     */
+    @GetMapping("/context")
+    public CompletableFuture<Map<String, String>> context(@RequestParam Integer userId) {
+        RequestContext context = RequestContexts.current();
+        String before = Thread.currentThread().getName() + ":" + context.getUserId();
+        context.setUserId(userId);
+        String after = Thread.currentThread().getName() + ":" + context.getUserId();
+        return computePoolRegistry.supplyAsync(POOL_NAME, THREAD_COUNT, () -> {
+            HashMap<String, String> result = new HashMap<>();
+            result.put("before", before);
+            result.put("after", after);
+            result.put("async", Thread.currentThread().getName() + ":" + RequestContexts.current().getUserId());
+            return result;
+        });
+    }
+
+    /**
+     * 请求数、残留上下文次数和传递上下文的开销
+     */
+    @GetMapping("/contextstats")
+    public Map<String, Object> contextStats() {
+        return RequestContexts.stats();
+    }
+
+    /**
+     * 扫描线程上残留的 ThreadLocal 值，例如 /threadlocal/retention?threadNamePrefix=http-nio 只看 Tomcat 的线程
+     */
+    @GetMapping("/retention")
+    public Map<String, Object> retention(@RequestParam(required = false) String threadNamePrefix) {
+        return threadLocalRetentionProfiler.scan(threadNamePrefix);
+    }
+
+    /**
+     * 抽样请求结束后新留下的 ThreadLocal 值，多次调用 /threadlocal/wrong 后可以在这里看到 currentUser
+     */
+    @GetMapping("/retention/requests")
+    public Map<String, Object> requestRetentions() {
+        return threadLocalRetentionProfiler.requestRetentions();
+    }
 }
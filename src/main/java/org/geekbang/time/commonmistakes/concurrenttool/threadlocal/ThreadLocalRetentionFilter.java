@@ -0,0 +1,43 @@
+package org.geekbang.time.commonmistakes.concurrenttool.threadlocal;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * 抽样记录请求开始时当前线程的 ThreadLocal，请求在这个线程上处理完后找出新留下的值
+ * <p>
+ *     放在最外层的 Filter 里对比，而不是 HandlerInterceptor：RequestContextCleanupFilter 等内层 Filter 都清理完之后才对比，
+ *     不会把马上就会被清理的值误报成残留；前后两次快照也一定在同一个线程上。
+ *     CompletableFuture 等异步 Controller 的请求，这里只统计 Servlet 容器线程上留下的值，异步派发（async dispatch）不再重复统计。
+ * </p>
+ */
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE)
+public class ThreadLocalRetentionFilter extends OncePerRequestFilter {
+
+    @Autowired
+    private ThreadLocalRetentionProfiler profiler;
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        Map<ThreadLocal<?>, Object> before = profiler.beforeRequest();
+        try {
+            filterChain.doFilter(request, response);
+        } finally {
+            if (before != null) {
+                profiler.afterRequest(before, request.getRequestURI());
+            }
+        }
+    }
+}
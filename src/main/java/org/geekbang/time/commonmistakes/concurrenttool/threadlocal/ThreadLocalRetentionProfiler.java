@@ -0,0 +1,153 @@
+package org.geekbang.time.commonmistakes.concurrenttool.threadlocal;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 统计线程池的线程上残留的 ThreadLocal 值
+ * <p>
+ *     两种方式：scan() 扫描 JVM 中所有线程，按 ThreadLocal 汇总当前的值个数和估算大小；
+ *     beforeRequest()/afterRequest() 由最外层的 ThreadLocalRetentionFilter 在请求前后调用，
+ *     按 threadlocal.retention.sample-rate 抽样，对比请求前后当前线程的 ThreadLocalMap，请求结束后仍然存在的新值就是这个请求留下的。
+ * </p>
+ */
+@Component
+public class ThreadLocalRetentionProfiler {
+
+    /** 请求残留统计最多记录的 ThreadLocal 个数，超出后汇总到 OTHER_RETENTIONS 中 */
+    private static final int MAX_RETENTIONS = 1000;
+
+    private static final String OTHER_RETENTIONS = "<other>";
+
+    @Value("${threadlocal.retention.enabled:true}")
+    private boolean enabled;
+
+    @Value("${threadlocal.retention.sample-rate:0.01}")
+    private double sampleRate;
+
+    private final ThreadLocalInspector inspector = new ThreadLocalInspector();
+
+    private final LongAdder sampledRequests = new LongAdder();
+
+    // key 是 ThreadLocalInspector.describe() 的结果，不持有 ThreadLocal 本身。
+    // describe() 包含 ThreadLocal 的 identityHashCode，每个请求都 new 一个 ThreadLocal 时 key 会不断增加，所以要限制个数
+    private final ConcurrentMap<String, Retention> retentions = new ConcurrentHashMap<>();
+
+    /**
+     * @return 没有抽中或者不可用时返回 null
+     */
+    public Map<ThreadLocal<?>, Object> beforeRequest() {
+        if (!enabled || !inspector.isAvailable() || ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            return null;
+        }
+        Map<ThreadLocal<?>, Object> before = new IdentityHashMap<>();
+        for (ThreadLocalInspector.Entry entry : inspector.entries(Thread.currentThread())) {
+            if (entry.getThreadLocal() != null) {
+                before.put(entry.getThreadLocal(), entry.getValue());
+            }
+        }
+        return before;
+    }
+
+    public void afterRequest(Map<ThreadLocal<?>, Object> before, String requestUri) {
+        sampledRequests.increment();
+        for (ThreadLocalInspector.Entry entry : inspector.entries(Thread.currentThread())) {
+            ThreadLocal<?> threadLocal = entry.getThreadLocal();
+            if (threadLocal == null || before.get(threadLocal) == entry.getValue()) {
+                continue;
+            }
+            Retention retention = this.retention(ThreadLocalInspector.describe(threadLocal, entry.getValue()));
+            retention.count.increment();
+            retention.approximateBytes.add(inspector.approximateSize(entry.getValue()));
+            retention.lastRequestUri = requestUri;
+        }
+    }
+
+    /**
+     * 已经记录过的 ThreadLocal 继续单独统计，记录满 MAX_RETENTIONS 个之后新出现的 ThreadLocal 都汇总到 OTHER_RETENTIONS，
+     * 并发时可能略微超出
+     */
+    private Retention retention(String name) {
+        Retention retention = retentions.get(name);
+        if (retention != null) {
+            return retention;
+        }
+        return retentions.computeIfAbsent(retentions.size() < MAX_RETENTIONS ? name : OTHER_RETENTIONS, key -> new Retention());
+    }
+
+    /**
+     * 抽样请求中发现的残留值，按 ThreadLocal 汇总，超出 MAX_RETENTIONS 个的 ThreadLocal 汇总在 OTHER_RETENTIONS 中
+     */
+    public Map<String, Object> requestRetentions() {
+        Map<String, Object> byThreadLocal = new TreeMap<>();
+        retentions.forEach((name, retention) -> {
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("count", retention.count.sum());
+            stats.put("approximateBytes", retention.approximateBytes.sum());
+            stats.put("lastRequestUri", retention.lastRequestUri);
+            byThreadLocal.put(name, stats);
+        });
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("available", inspector.isAvailable());
+        result.put("enabled", enabled);
+        result.put("sampleRate", sampleRate);
+        result.put("sampledRequests", sampledRequests.sum());
+        result.put("retentions", byThreadLocal);
+        return result;
+    }
+
+    /**
+     * 扫描名称以 threadNamePrefix 开头的线程（为空时扫描所有线程），按 ThreadLocal 汇总值的个数、线程数和估算大小
+     */
+    public Map<String, Object> scan(String threadNamePrefix) {
+        Map<String, Map<String, Object>> byThreadLocal = new TreeMap<>();
+        int threads = 0;
+        int entries = 0;
+        long approximateBytes = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (threadNamePrefix != null && !thread.getName().startsWith(threadNamePrefix)) {
+                continue;
+            }
+            threads++;
+            for (ThreadLocalInspector.Entry entry : inspector.entries(thread)) {
+                long bytes = inspector.approximateSize(entry.getValue());
+                Map<String, Object> stats = byThreadLocal.computeIfAbsent(
+                        ThreadLocalInspector.describe(entry.getThreadLocal(), entry.getValue()), key -> {
+                            Map<String, Object> initial = new LinkedHashMap<>();
+                            initial.put("threads", 0);
+                            initial.put("approximateBytes", 0L);
+                            return initial;
+                        });
+                stats.merge("threads", 1, (a, b) -> (Integer) a + (Integer) b);
+                stats.merge("approximateBytes", bytes, (a, b) -> (Long) a + (Long) b);
+                entries++;
+                approximateBytes += bytes;
+            }
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("available", inspector.isAvailable());
+        result.put("threads", threads);
+        result.put("entries", entries);
+        result.put("approximateBytes", approximateBytes);
+        result.put("byThreadLocal", byThreadLocal);
+        return result;
+    }
+
+    private static class Retention {
+
+        private final LongAdder count = new LongAdder();
+
+        private final LongAdder approximateBytes = new LongAdder();
+
+        private volatile String lastRequestUri;
+    }
+}
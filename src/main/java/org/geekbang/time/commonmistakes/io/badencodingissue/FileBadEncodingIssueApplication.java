@@ -2,12 +2,16 @@ package org.geekbang.time.commonmistakes.io.badencodingissue;
 
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.codec.binary.Hex;
+import org.geekbang.time.commonmistakes.io.transcode.StreamingTranscoder;
+import org.geekbang.time.commonmistakes.io.transcode.TranscodeResult;
 
 import java.io.*;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 
 /**
  * 文件读写需要确保字符编码一致
@@ -21,11 +25,16 @@ public class FileBadEncodingIssueApplication {
     private static final String FILE_CONTENT = "你好AB";
     private static final String FILE_PATH = "hello.txt";
     private static final Charset GBK_CHARSET = Charset.forName("GBK");
+    private static final String UTF8_FILE_PATH = "hello-utf8.txt";
+    private static final String LARGE_FILE_PATH = "hello-large.txt";
+    // 转码吞吐量测试的文件大小
+    private static final int LARGE_FILE_MB = 64;
 
     public static void main(String[] args) throws IOException {
         init();
         wrong();
         right();
+        streamingTranscode();
     }
 
     private static void init() throws IOException {
@@ -88,4 +97,28 @@ public class FileBadEncodingIssueApplication {
 
     }
 
+    /**
+     * 大文件不应该整个读进 StringBuilder，而是边读边转码：自动识别出源文件是 GBK，转成 UTF-8 写到另一个文件，内存占用只有几个固定大小的缓冲区
+     */
+    private static void streamingTranscode() throws IOException {
+        StreamingTranscoder transcoder = new StreamingTranscoder(64 * 1024);
+        TranscodeResult result = transcoder.transcode(Paths.get(FILE_PATH), Paths.get(UTF8_FILE_PATH), StandardCharsets.UTF_8);
+        log.info("streamingTranscode result: {}, content: {}", result,
+                new String(Files.readAllBytes(Paths.get(UTF8_FILE_PATH)), StandardCharsets.UTF_8));
+
+        Path largePath = Paths.get(LARGE_FILE_PATH);
+        byte[] line = (FILE_CONTENT + "\n").getBytes(GBK_CHARSET);
+        // 每块都是整数行，避免把一个汉字的两个字节切开
+        byte[] chunk = new byte[1024 * 1024 / line.length * line.length];
+        for (int i = 0; i < chunk.length; i++) {
+            chunk[i] = line[i % line.length];
+        }
+        Files.deleteIfExists(largePath);
+        for (int i = 0; i < LARGE_FILE_MB; i++) {
+            Files.write(largePath, chunk, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+        log.info("streamingTranscode large file: {}", transcoder.transcode(largePath, GBK_CHARSET, Paths.get(UTF8_FILE_PATH), StandardCharsets.UTF_8));
+        Files.delete(largePath);
+    }
+
 }
@@ -1,9 +1,13 @@
 package org.geekbang.time.commonmistakes.io.filebufferperformance;
 
 import lombok.extern.slf4j.Slf4j;
+import org.geekbang.time.commonmistakes.io.filecopy.CopyResult;
+import org.geekbang.time.commonmistakes.io.filecopy.CopyStrategy;
+import org.geekbang.time.commonmistakes.io.filecopy.ParallelFileCopier;
 import org.springframework.util.StopWatch;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
@@ -13,6 +17,8 @@ import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -31,6 +37,11 @@ public class FileBufferPerformance {
 
     private static final int READ_COUNT = 300000;
 
+    private static final String LARGE_SOURCE_FILE_PATH = "large-source.bin";
+    private static final String LARGE_TARGET_FILE_PATH = "large-target.bin";
+    // 大文件复制对比的文件大小（GB），例如 -Dfilebufferperformance.large-file-gb=4，不设置时不运行
+    private static final String LARGE_FILE_GB_PROPERTY = "filebufferperformance.large-file-gb";
+
     public static void main(String[] args) throws IOException {
         StopWatch stopWatch = new StopWatch();
         init();
@@ -60,6 +71,13 @@ public class FileBufferPerformance {
         stopWatch.stop();
 
         log.info(stopWatch.prettyPrint());
+
+        copierOperations();
+
+        String largeFileGb = System.getProperty(LARGE_FILE_GB_PROPERTY);
+        if (largeFileGb != null) {
+            largeFileOperations(Long.parseLong(largeFileGb) * 1024 * 1024 * 1024);
+        }
     }
 
     private static void wrong() throws IOException {
@@ -144,9 +162,78 @@ public class FileBufferPerformance {
      * @throws IOException
      */
     private static void fileChannelOperation() throws IOException {
-        FileChannel in = FileChannel.open(Paths.get(SOURCE_FILE_PATH), StandardOpenOption.READ);
-        FileChannel out = FileChannel.open(Paths.get(TARGET_FILE_PATH), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
-        in.transferTo(0, in.size(), out);
+        // transferTo 一次不一定能传输完所有字节，TransferFileCopier 会循环调用，并在源文件被截断时抛出 EOFException 而不是死循环
+        CopyStrategy.TRANSFER_TO.create().copy(Paths.get(SOURCE_FILE_PATH), Paths.get(TARGET_FILE_PATH));
+    }
+
+    /**
+     * 使用 FileCopier 的各种复制方式，输出每种方式的吞吐量
+     */
+    private static void copierOperations() throws IOException {
+        for (CopyStrategy strategy : CopyStrategy.values()) {
+            CopyResult result = strategy.create().copy(Paths.get(SOURCE_FILE_PATH), Paths.get(TARGET_FILE_PATH));
+            log.info("{} -> {}", strategy, result);
+        }
+    }
+
+    /**
+     * 大文件的单线程复制和多线程分段复制对比
+     */
+    private static void largeFileOperations(long size) throws IOException {
+        Path source = Paths.get(LARGE_SOURCE_FILE_PATH);
+        Path target = Paths.get(LARGE_TARGET_FILE_PATH);
+        initLargeFile(source, size);
+        try {
+            for (CopyStrategy strategy : new CopyStrategy[]{CopyStrategy.BUFFERED_STREAM, CopyStrategy.TRANSFER_TO,
+                    CopyStrategy.MAPPED, CopyStrategy.DIRECT_BUFFER, CopyStrategy.PIPELINED}) {
+                log.info("{} -> {}", strategy, strategy.create().copy(source, target));
+            }
+            int parallelism = Runtime.getRuntime().availableProcessors();
+            for (ParallelFileCopier.Mode mode : ParallelFileCopier.Mode.values()) {
+                for (boolean verify : new boolean[]{false, true}) {
+                    try (ParallelFileCopier copier = new ParallelFileCopier(parallelism, 64L * 1024 * 1024, mode, verify,
+                            progressLogger())) {
+                        log.info("PARALLEL -> {}", copier.copy(source, target));
+                    }
+                }
+            }
+        } finally {
+            Files.deleteIfExists(source);
+            Files.deleteIfExists(target);
+        }
+    }
+
+    /**
+     * 每复制完 10% 输出一次进度
+     */
+    private static ParallelFileCopier.ProgressListener progressLogger() {
+        AtomicLong lastDecile = new AtomicLong();
+        return (copiedBytes, totalBytes) -> {
+            long decile = copiedBytes * 10 / totalBytes;
+            long last = lastDecile.get();
+            if (decile > last && lastDecile.compareAndSet(last, decile)) {
+                log.info("copied {}%", decile * 10);
+            }
+        };
+    }
+
+    private static void initLargeFile(Path path, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+        byte[] random = new byte[buffer.capacity()];
+        ThreadLocalRandom.current().nextBytes(random);
+        try (FileChannel out = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            long written = 0;
+            while (written < size) {
+                buffer.clear();
+                buffer.put(random, 0, (int) Math.min(random.length, size - written));
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    written += out.write(buffer);
+                }
+            }
+        }
+        log.info("large file write end, file size: {}", size);
     }
 
     private static void init() throws IOException {
@@ -0,0 +1,34 @@
+package org.geekbang.time.commonmistakes.io.filecopy;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 负责计时，子类只需要实现 doCopy
+ */
+public abstract class AbstractFileCopier implements FileCopier {
+
+    private final String name;
+
+    protected AbstractFileCopier(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public CopyResult copy(Path source, Path target) throws IOException {
+        long start = System.nanoTime();
+        long bytes = this.doCopy(source, target);
+        return new CopyResult(name, bytes, System.nanoTime() - start);
+    }
+
+    /**
+     * @return 复制的字节数
+     */
+    protected abstract long doCopy(Path source, Path target) throws IOException;
+
+    protected static FileChannel openTarget(Path target) throws IOException {
+        return FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    }
+}
@@ -0,0 +1,71 @@
+package org.geekbang.time.commonmistakes.io.filecopy;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * 按文件大小和所在文件系统选择复制方式
+ * <ul>
+ *     <li>小于 smallFileThreshold 的小文件：打开 Channel 的开销比复制本身还大，用流复制</li>
+ *     <li>源或目标在网络文件系统上：transferTo 无法由内核直接完成，退化成 JDK 内部的循环读写，直接用复用的直接内存缓冲区</li>
+ *     <li>其它情况：transferTo 由内核完成复制</li>
+ * </ul>
+ */
+public class AutoFileCopier implements FileCopier {
+
+    private static final long DEFAULT_SMALL_FILE_THRESHOLD = 256 * 1024;
+
+    private static final Set<String> NETWORK_FILE_STORE_TYPES = new HashSet<>(Arrays.asList(
+            "nfs", "nfs4", "cifs", "smbfs", "smb2", "fuse.sshfs", "afpfs", "webdav"));
+
+    private final long smallFileThreshold;
+
+    private final FileCopier smallFileCopier = new BufferedStreamFileCopier(64 * 1024);
+
+    private final FileCopier networkFileCopier = new DirectBufferFileCopier(1024 * 1024);
+
+    private final FileCopier localFileCopier = new TransferFileCopier(false, Integer.MAX_VALUE);
+
+    public AutoFileCopier() {
+        this(DEFAULT_SMALL_FILE_THRESHOLD);
+    }
+
+    public AutoFileCopier(long smallFileThreshold) {
+        this.smallFileThreshold = smallFileThreshold;
+    }
+
+    @Override
+    public CopyResult copy(Path source, Path target) throws IOException {
+        return this.select(source, target).copy(source, target);
+    }
+
+    public FileCopier select(Path source, Path target) throws IOException {
+        if (Files.size(source) < smallFileThreshold) {
+            return smallFileCopier;
+        }
+        if (isNetworkFileStore(Files.getFileStore(source)) || isNetworkFileStore(targetFileStore(target))) {
+            return networkFileCopier;
+        }
+        return localFileCopier;
+    }
+
+    /**
+     * 目标文件可能还不存在，用所在目录的文件系统
+     */
+    private static FileStore targetFileStore(Path target) throws IOException {
+        if (Files.exists(target)) {
+            return Files.getFileStore(target);
+        }
+        Path parent = target.toAbsolutePath().getParent();
+        return Files.getFileStore(parent);
+    }
+
+    private static boolean isNetworkFileStore(FileStore fileStore) {
+        return NETWORK_FILE_STORE_TYPES.contains(fileStore.type().toLowerCase());
+    }
+}
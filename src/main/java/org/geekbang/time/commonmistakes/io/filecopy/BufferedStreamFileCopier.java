@@ -0,0 +1,38 @@
+package org.geekbang.time.commonmistakes.io.filecopy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * 用 byte[] 做缓冲区的流复制，数据要在内核和 Java 堆之间复制两次，但没有打开 Channel 的额外开销，适合小文件
+ */
+public class BufferedStreamFileCopier extends AbstractFileCopier {
+
+    private final int bufferSize;
+
+    public BufferedStreamFileCopier(int bufferSize) {
+        super("bufferedStream(" + bufferSize + ")");
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("bufferSize 必须大于 0");
+        }
+        this.bufferSize = bufferSize;
+    }
+
+    @Override
+    protected long doCopy(Path source, Path target) throws IOException {
+        long bytes = 0;
+        try (InputStream inputStream = Files.newInputStream(source);
+             OutputStream outputStream = Files.newOutputStream(target)) {
+            byte[] buffer = new byte[bufferSize];
+            int len;
+            while ((len = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, len);
+                bytes += len;
+            }
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,27 @@
+package org.geekbang.time.commonmistakes.io.filecopy;
+
+import lombok.Value;
+
+/**
+ * 一次复制的结果
+ */
+@Value
+public class CopyResult {
+
+    /** 实际使用的复制方式 */
+    String strategy;
+
+    long bytes;
+
+    long nanos;
+
+    public long getBytesPerSecond() {
+        return nanos == 0 ? 0 : Math.round(bytes / (nanos / 1e9));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d bytes in %.3f ms, %.1f MB/s",
+                strategy, bytes, nanos / 1e6, getBytesPerSecond() / 1024.0 / 1024.0);
+    }
+}
@@ -0,0 +1,40 @@
+package org.geekbang.time.commonmistakes.io.filecopy;
+
+import java.util.function.Supplier;
+
+/**
+ * 几种文件复制方式的默认配置
+ */
+public enum CopyStrategy {
+
+    /** 64KB byte[] 缓冲区的流复制 */
+    BUFFERED_STREAM(() -> new BufferedStreamFileCopier(64 * 1024)),
+
+    /** 循环调用 transferTo */
+    TRANSFER_TO(() -> new TransferFileCopier(false, Integer.MAX_VALUE)),
+
+    /** 循环调用 transferFrom */
+    TRANSFER_FROM(() -> new TransferFileCopier(true, Integer.MAX_VALUE)),
+
+    /** 每次映射 64MB */
+    MAPPED(() -> new MappedFileCopier(64L * 1024 * 1024)),
+
+    /** 复用 1MB 的直接内存缓冲区 */
+    DIRECT_BUFFER(() -> new DirectBufferFileCopier(1024 * 1024)),
+
+    /** AsynchronousFileChannel + 4 个 1MB 直接内存缓冲区组成的环，读写重叠 */
+    PIPELINED(() -> new PipelinedFileCopier(4, 1024 * 1024)),
+
+    /** 按文件大小和文件系统自动选择 */
+    AUTO(AutoFileCopier::new);
+
+    private final Supplier<FileCopier> factory;
+
+    CopyStrategy(Supplier<FileCopier> factory) {
+        this.factory = factory;
+    }
+
+    public FileCopier create() {
+        return factory.get();
+    }
+}
@@ -0,0 +1,50 @@
+package org.geekbang.time.commonmistakes.io.filecopy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * 用直接内存缓冲区做 Channel 读写，数据不需要在 Java 堆和直接内存之间再复制一次
+ * <p>
+ *     分配和释放直接内存的代价很高，缓冲区用完后放回队列给下一次复制复用，队列里的缓冲区个数不超过同时复制的文件数。
+ * </p>
+ */
+public class DirectBufferFileCopier extends AbstractFileCopier {
+
+    private final int bufferSize;
+
+    private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+
+    public DirectBufferFileCopier(int bufferSize) {
+        super("directBuffer(" + bufferSize + ")");
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("bufferSize 必须大于 0");
+        }
+        this.bufferSize = bufferSize;
+    }
+
+    @Override
+    protected long doCopy(Path source, Path target) throws IOException {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+        }
+        buffer.clear();
+        long bytes = 0;
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = openTarget(target)) {
+            while (in.read(buffer) != -1 || buffer.position() > 0) {
+                buffer.flip();
+                bytes += out.write(buffer);
+                buffer.compact();
+            }
+        } finally {
+            buffers.offer(buffer);
+        }
+        return bytes;
+    }
+}
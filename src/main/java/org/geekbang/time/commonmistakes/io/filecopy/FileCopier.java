@@ -0,0 +1,12 @@
+package org.geekbang.time.commonmistakes.io.filecopy;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * 文件复制，目标文件已经存在时会被覆盖
+ */
+public interface FileCopier {
+
+    CopyResult copy(Path source, Path target) throws IOException;
+}
@@ -0,0 +1,45 @@
+package org.geekbang.time.commonmistakes.io.filecopy;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 把源文件按 regionSize 分段映射到内存，再写入目标文件
+ * <p>
+ *     单个 MappedByteBuffer 最多 2GB，所以要分段映射；映射在 GC 回收 MappedByteBuffer 之前不会释放，
+ *     regionSize 不宜过大，避免复制大文件时占用过多虚拟内存。
+ * </p>
+ */
+public class MappedFileCopier extends AbstractFileCopier {
+
+    private final long regionSize;
+
+    public MappedFileCopier(long regionSize) {
+        super("mapped(" + regionSize + ")");
+        if (regionSize <= 0 || regionSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("regionSize 必须在 1 到 Integer.MAX_VALUE 之间");
+        }
+        this.regionSize = regionSize;
+    }
+
+    @Override
+    protected long doCopy(Path source, Path target) throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = openTarget(target)) {
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                long length = Math.min(regionSize, size - position);
+                MappedByteBuffer region = in.map(FileChannel.MapMode.READ_ONLY, position, length);
+                while (region.hasRemaining()) {
+                    out.write(region);
+                }
+                position += length;
+            }
+            return position;
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package org.geekbang.time.commonmistakes.io.filecopy;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+
+/**
+ * 多线程分段复制大文件
+ * <p>
+ *     单线程从头复制到尾时，NVMe 等设备的队列深度只用到 1，带宽远远没有用满。这里把文件按 regionSize（向上对齐到 1MB）切分成多段，
+ *     parallelism 个线程各自打开源文件和目标文件的 Channel，轮流领取下一段，用带 position 的 read/write（POSITIONAL）
+ *     或者 transferTo（TRANSFER）复制，线程之间不共享 Channel 的位置。<br>
+ *     复制前先把目标文件的长度扩展到源文件大小，各段写入时不需要再修改文件长度。这只是设置长度，不是预分配：
+ *     在支持稀疏文件的文件系统上得到的是一个空洞文件，磁盘块仍然在各段写入时才分配。Java 8 没有可移植的 fallocate，
+ *     先写一遍零来真正预分配又会让写入量翻倍，所以不做。<br>
+ *     verify 为 true 时每段复制完成后比较源和目标的 CRC32。读回的目标数据来自页缓存里刚写入的内容，
+ *     只能发现复制逻辑本身的错误，发现不了数据落盘时的损坏；要校验磁盘上的数据，需要在页缓存被清掉之后重新读取整个文件。<br>
+ *     线程池在构造时创建，用完需要 close()。
+ * </p>
+ */
+public class ParallelFileCopier extends AbstractFileCopier implements Closeable {
+
+    private static final long ALIGNMENT = 1024 * 1024;
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    public enum Mode {
+        /** 直接内存缓冲区 + FileChannel.read(buffer, position) / write(buffer, position) */
+        POSITIONAL,
+        /** 每段调用 transferTo，由内核复制 */
+        TRANSFER
+    }
+
+    /**
+     * 每复制完一段回调一次，在复制线程中调用
+     */
+    public interface ProgressListener {
+        void onProgress(long copiedBytes, long totalBytes);
+    }
+
+    private final int parallelism;
+
+    private final long regionSize;
+
+    private final Mode mode;
+
+    private final boolean verify;
+
+    private final ProgressListener progressListener;
+
+    private final ExecutorService executor;
+
+    public ParallelFileCopier(int parallelism, long regionSize, Mode mode, boolean verify, ProgressListener progressListener) {
+        super("parallel(" + mode + ", " + parallelism + " threads" + (verify ? ", verified" : "") + ")");
+        if (parallelism <= 0 || regionSize <= 0) {
+            throw new IllegalArgumentException("parallelism 和 regionSize 必须大于 0");
+        }
+        this.parallelism = parallelism;
+        this.regionSize = (regionSize + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+        this.mode = mode;
+        this.verify = verify;
+        this.progressListener = progressListener;
+        AtomicInteger threadIndex = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "parallel-file-copier-" + threadIndex.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    protected long doCopy(Path source, Path target) throws IOException {
+        long size = Files.size(source);
+        extendLength(target, size);
+        long regionCount = (size + regionSize - 1) / regionSize;
+        AtomicLong nextRegion = new AtomicLong();
+        AtomicLong copiedBytes = new AtomicLong();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Future<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < Math.min(parallelism, regionCount); i++) {
+            futures.add(executor.submit(() -> {
+                this.copyRegions(source, target, size, regionCount, nextRegion, copiedBytes, failure);
+                return null;
+            }));
+        }
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                failure.compareAndSet(null, e);
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("复制被中断：" + source);
+            } catch (ExecutionException e) {
+                failure.compareAndSet(null, e.getCause());
+            }
+        }
+        Throwable cause = failure.get();
+        if (cause instanceof IOException) {
+            throw (IOException) cause;
+        }
+        if (cause != null) {
+            throw new IOException("复制失败：" + source, cause);
+        }
+        return copiedBytes.get();
+    }
+
+    /**
+     * 在最后一个字节写入 0，把目标文件的长度设置为 size，并不分配中间的磁盘块
+     */
+    private static void extendLength(Path target, long size) throws IOException {
+        try (FileChannel out = openTarget(target)) {
+            if (size > 0) {
+                out.write(ByteBuffer.wrap(new byte[1]), size - 1);
+            }
+        }
+    }
+
+    /**
+     * 一个复制线程：不断领取下一段，直到所有段都被领取或者其它线程失败
+     */
+    private void copyRegions(Path source, Path target, long size, long regionCount, AtomicLong nextRegion,
+                             AtomicLong copiedBytes, AtomicReference<Throwable> failure) throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE, StandardOpenOption.READ)) {
+            ByteBuffer buffer = mode == Mode.POSITIONAL || verify ? ByteBuffer.allocateDirect(BUFFER_SIZE) : null;
+            long region;
+            while (failure.get() == null && (region = nextRegion.getAndIncrement()) < regionCount) {
+                long start = region * regionSize;
+                long length = Math.min(regionSize, size - start);
+                CRC32 sourceCrc = verify ? new CRC32() : null;
+                if (mode == Mode.POSITIONAL) {
+                    copyPositional(in, out, buffer, start, length, sourceCrc);
+                } else {
+                    transfer(in, out, start, length);
+                    if (verify) {
+                        checksum(in, buffer, start, length, sourceCrc);
+                    }
+                }
+                if (verify) {
+                    CRC32 targetCrc = new CRC32();
+                    checksum(out, buffer, start, length, targetCrc);
+                    if (sourceCrc.getValue() != targetCrc.getValue()) {
+                        throw new IOException("CRC32 校验失败：" + target + " [" + start + ", " + (start + length) + ")");
+                    }
+                }
+                long copied = copiedBytes.addAndGet(length);
+                if (progressListener != null) {
+                    progressListener.onProgress(copied, size);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            failure.compareAndSet(null, e);
+            throw e;
+        }
+    }
+
+    private static void copyPositional(FileChannel in, FileChannel out, ByteBuffer buffer, long start, long length,
+                                       CRC32 crc) throws IOException {
+        long position = start;
+        long end = start + length;
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            readFully(in, buffer, position);
+            buffer.flip();
+            if (crc != null) {
+                crc.update(buffer.duplicate());
+            }
+            long writePosition = position;
+            while (buffer.hasRemaining()) {
+                writePosition += out.write(buffer, writePosition);
+            }
+            position = writePosition;
+        }
+    }
+
+    /**
+     * transferTo 写入目标 Channel 的当前位置，每个线程有自己的目标 Channel，设置位置不会影响其它线程
+     */
+    private static void transfer(FileChannel in, FileChannel out, long start, long length) throws IOException {
+        out.position(start);
+        long position = start;
+        long end = start + length;
+        while (position < end) {
+            long transferred = in.transferTo(position, end - position, out);
+            if (transferred <= 0) {
+                throw new EOFException("源文件在复制过程中被截断，位置 " + position);
+            }
+            position += transferred;
+        }
+    }
+
+    private static void checksum(FileChannel channel, ByteBuffer buffer, long start, long length, CRC32 crc) throws IOException {
+        long position = start;
+        long end = start + length;
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            readFully(channel, buffer, position);
+            buffer.flip();
+            position += buffer.remaining();
+            crc.update(buffer);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("文件在复制过程中被截断，位置 " + position);
+            }
+            position += read;
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+}
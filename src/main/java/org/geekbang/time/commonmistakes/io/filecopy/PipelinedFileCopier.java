@@ -0,0 +1,132 @@
+package org.geekbang.time.commonmistakes.io.filecopy;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * 读写重叠的流水线复制
+ * <p>
+ *     其它复制方式都是读一块、写一块交替进行，读的时候磁盘写入是空闲的，反之亦然。这里用 AsynchronousFileChannel
+ *     和 ringSize 个直接内存缓冲区组成环：一块缓冲区读满后立即发起异步写入，同时开始读下一块；
+ *     读取下一块之前必须等这块缓冲区上一次的写入完成，所以最多只有 ringSize 个缓冲区在写入，读得比写得快时读取会停下来等待。<br>
+ *     缓冲区环用完后放回队列复用。Linux 上 AsynchronousFileChannel 的异步操作由 JDK 内部的线程池完成。
+ * </p>
+ */
+public class PipelinedFileCopier extends AbstractFileCopier {
+
+    private final int ringSize;
+
+    private final int bufferSize;
+
+    private final ConcurrentLinkedQueue<ByteBuffer[]> rings = new ConcurrentLinkedQueue<>();
+
+    public PipelinedFileCopier(int ringSize, int bufferSize) {
+        super("pipelined(" + ringSize + " x " + bufferSize + ")");
+        if (ringSize < 2 || bufferSize <= 0) {
+            throw new IllegalArgumentException("ringSize 不能小于 2，bufferSize 必须大于 0");
+        }
+        this.ringSize = ringSize;
+        this.bufferSize = bufferSize;
+    }
+
+    @Override
+    protected long doCopy(Path source, Path target) throws IOException {
+        ByteBuffer[] ring = rings.poll();
+        if (ring == null) {
+            ring = new ByteBuffer[ringSize];
+            for (int i = 0; i < ringSize; i++) {
+                ring[i] = ByteBuffer.allocateDirect(bufferSize);
+            }
+        }
+        long bytes;
+        try (AsynchronousFileChannel in = AsynchronousFileChannel.open(source, StandardOpenOption.READ);
+             AsynchronousFileChannel out = AsynchronousFileChannel.open(target, StandardOpenOption.CREATE,
+                     StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            bytes = this.pipeline(in, out, ring);
+        }
+        // 失败时可能还有异步操作在使用这些缓冲区，只有成功时才放回队列
+        rings.offer(ring);
+        return bytes;
+    }
+
+    private long pipeline(AsynchronousFileChannel in, AsynchronousFileChannel out, ByteBuffer[] ring) throws IOException {
+        CompletableFuture<?>[] writes = new CompletableFuture<?>[ring.length];
+        long position = 0;
+        int slot = 0;
+        ring[slot].clear();
+        Future<Integer> read = in.read(ring[slot], position);
+        while (true) {
+            int bytesRead = await(read);
+            if (bytesRead <= 0) {
+                break;
+            }
+            ByteBuffer buffer = ring[slot];
+            buffer.flip();
+            // 先发起下一块的读取，再写这一块，读写同时进行
+            int next = (slot + 1) % ring.length;
+            await(writes[next]);
+            ring[next].clear();
+            read = in.read(ring[next], position + bytesRead);
+            writes[slot] = writeFully(out, buffer, position);
+            position += bytesRead;
+            slot = next;
+        }
+        for (CompletableFuture<?> write : writes) {
+            await(write);
+        }
+        return position;
+    }
+
+    /**
+     * 异步写入整个缓冲区，一次没写完时继续写剩下的部分
+     */
+    private static CompletableFuture<Void> writeFully(AsynchronousFileChannel out, ByteBuffer buffer, long position) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        out.write(buffer, position, null, new CompletionHandler<Integer, Void>() {
+
+            private long writePosition = position;
+
+            @Override
+            public void completed(Integer written, Void attachment) {
+                writePosition += written;
+                if (buffer.hasRemaining()) {
+                    out.write(buffer, writePosition, null, this);
+                } else {
+                    done.complete(null);
+                }
+            }
+
+            @Override
+            public void failed(Throwable e, Void attachment) {
+                done.completeExceptionally(e);
+            }
+        });
+        return done;
+    }
+
+    private static <T> T await(Future<T> future) throws IOException {
+        if (future == null) {
+            return null;
+        }
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("复制被中断");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+}
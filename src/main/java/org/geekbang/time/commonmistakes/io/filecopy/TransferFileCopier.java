@@ -0,0 +1,52 @@
+package org.geekbang.time.commonmistakes.io.filecopy;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * FileChannel.transferTo / transferFrom，在 Linux 上由内核直接复制（sendfile），数据不经过 Java 堆
+ * <p>
+ *     一次调用不保证传输完所有字节（例如 Linux 上单次最多约 2GB），必须循环直到复制完整个文件。
+ * </p>
+ */
+public class TransferFileCopier extends AbstractFileCopier {
+
+    private final boolean transferFrom;
+
+    private final long chunkSize;
+
+    /**
+     * @param transferFrom true 使用目标 Channel 的 transferFrom，false 使用源 Channel 的 transferTo
+     * @param chunkSize    每次调用最多传输的字节数
+     */
+    public TransferFileCopier(boolean transferFrom, long chunkSize) {
+        super(transferFrom ? "transferFrom" : "transferTo");
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize 必须大于 0");
+        }
+        this.transferFrom = transferFrom;
+        this.chunkSize = chunkSize;
+    }
+
+    @Override
+    protected long doCopy(Path source, Path target) throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = openTarget(target)) {
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                long count = Math.min(chunkSize, size - position);
+                // transferFrom 从 in 的当前位置读取，每次调用后 in 的位置会前进
+                long transferred = transferFrom ? out.transferFrom(in, position, count) : in.transferTo(position, count, out);
+                if (transferred <= 0) {
+                    throw new EOFException("源文件在复制过程中被截断：" + source + "，已复制 " + position + " 字节");
+                }
+                position += transferred;
+            }
+            return position;
+        }
+    }
+}
@@ -1,6 +1,9 @@
 package org.geekbang.time.commonmistakes.io.filestreamoperationneedclose;
 
 import lombok.extern.slf4j.Slf4j;
+import org.geekbang.time.commonmistakes.io.mappedfile.LineIndex;
+import org.geekbang.time.commonmistakes.io.mappedfile.LineIndexService;
+import org.geekbang.time.commonmistakes.io.mappedfile.MappedLines;
 
 import java.io.IOException;
 import java.nio.charset.Charset;
@@ -34,8 +37,10 @@ public class FileStreamOperationNeedClose {
         init();
         //readLargeFileWrong();
         readRightFileWrong();
+        readLargeFileParallel();
         //wrong();
         right();
+        lineIndex();
     }
 
     /**
@@ -79,6 +84,24 @@ public class FileStreamOperationNeedClose {
         log.info("right time: {}", System.currentTimeMillis() - start);
     }
 
+    /**
+     * 反复统计同一个文件的行数时，只在第一次用内存映射扫描文件建立行索引，之后文件大小和修改时间不变就直接使用缓存的索引，
+     * 不再打开文件、也不再解码字符
+     */
+    private static void lineIndex() throws IOException {
+        long start = System.currentTimeMillis();
+        LongAdder longAdder = new LongAdder();
+        Path path = Paths.get(DEMO_FILE_PATH);
+        LineIndexService lineIndexService = new LineIndexService(1000);
+        for (int i = 1; i <= READ_COUNT; i++) {
+            longAdder.add(lineIndexService.lineCount(path));
+        }
+        LineIndex lineIndex = lineIndexService.get(path);
+        log.info("lineIndex first line: {}", UTF8_CHARSET.decode(lineIndex.line(0)));
+        log.info("lineIndex total: {}", longAdder.longValue());
+        log.info("lineIndex time: {}", System.currentTimeMillis() - start);
+    }
+
     private static void init() throws IOException {
         // 写入 10 行数据到文件
         Files.write(Paths.get(DEMO_FILE_PATH),
@@ -120,4 +143,22 @@ public class FileStreamOperationNeedClose {
         });
     }
 
+    /**
+     * Files.lines 返回的 Stream 在 Java 8 下几乎无法并行；MappedLines 在换行处切分内存映射的文件，
+     * parallel() 后每个线程处理文件的一段，同时只映射固定大小的窗口，内存占用有上限
+     */
+    private static void readLargeFileParallel() throws IOException {
+        Path path = Paths.get(LARGER_FILE_PATH);
+        long start = System.currentTimeMillis();
+        try (Stream<String> lines = Files.lines(path, UTF8_CHARSET)) {
+            log.info("Files.lines parallel count: {}, time: {}", lines.parallel().filter(line -> line.endsWith("test")).count(),
+                    System.currentTimeMillis() - start);
+        }
+        start = System.currentTimeMillis();
+        try (Stream<String> lines = MappedLines.lines(path, UTF8_CHARSET)) {
+            log.info("MappedLines parallel count: {}, time: {}", lines.parallel().filter(line -> line.endsWith("test")).count(),
+                    System.currentTimeMillis() - start);
+        }
+    }
+
 }
@@ -0,0 +1,180 @@
+package org.geekbang.time.commonmistakes.io.mappedfile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 文件每一行的起始位置
+ * <p>
+ *     用内存映射扫描一遍文件，在原始字节里找 '\n'，记录每一行的起始偏移；之后统计行数、读取任意一行都只是数组和内存访问，
+ *     不需要再打开文件，也不需要解码字符。行以 '\n' 结尾（和 Files.lines 不同，单独的 '\r' 不算换行），返回的行不包含 "\n" 或 "\r\n"。<br>
+ *     单个 MappedByteBuffer 最多 2GB，所以按窗口映射，每个窗口都在换行处结束，任何一行都完整地落在一个窗口内（单行不能超过 2GB）。
+ *     映射在 LineIndex 被 GC 回收前一直有效；文件被截断后再读取映射会出错，所以要用 LineIndexService 按大小和修改时间判断是否需要重建。
+ * </p>
+ */
+public final class LineIndex {
+
+    private static final long MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+
+    private static final long NEWLINES = 0x0A0A0A0A0A0A0A0AL;
+    private static final long LOW_BITS = 0x0101010101010101L;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+
+    private final long size;
+
+    private final long lastModifiedMillis;
+
+    private final long[] lineStarts;
+
+    private final long[] windowStarts;
+
+    private final ByteBuffer[] windows;
+
+    private LineIndex(long size, long lastModifiedMillis, long[] lineStarts, long[] windowStarts, ByteBuffer[] windows) {
+        this.size = size;
+        this.lastModifiedMillis = lastModifiedMillis;
+        this.lineStarts = lineStarts;
+        this.windowStarts = windowStarts;
+        this.windows = windows;
+    }
+
+    /**
+     * 扫描文件建立索引
+     */
+    public static LineIndex build(Path path, long lastModifiedMillis) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            LongList lineStarts = new LongList();
+            LongList windowStarts = new LongList();
+            List<ByteBuffer> windows = new ArrayList<>();
+            if (size > 0) {
+                lineStarts.add(0);
+            }
+            long windowStart = 0;
+            while (windowStart < size) {
+                long windowLength = Math.min(MAX_WINDOW_SIZE, size - windowStart);
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, windowLength);
+                long lastLineStart = scan(window, windowStart, size, lineStarts);
+                windowStarts.add(windowStart);
+                if (windowStart + windowLength == size) {
+                    windows.add(window);
+                    break;
+                }
+                if (lastLineStart <= windowStart) {
+                    throw new IOException("单行超过 2GB，无法建立索引：" + path);
+                }
+                // 窗口在最后一个换行处结束，剩下的半行从下一个窗口开始
+                window.limit((int) (lastLineStart - windowStart));
+                windows.add(window.slice());
+                windowStart = lastLineStart;
+            }
+            return new LineIndex(size, lastModifiedMillis, lineStarts.toArray(), windowStarts.toArray(),
+                    windows.toArray(new ByteBuffer[0]));
+        }
+    }
+
+    /**
+     * 每次比较 8 个字节，找出其中的 '\n'
+     *
+     * @return 窗口中最后一行的起始位置，窗口中没有换行时返回 -1
+     */
+    private static long scan(MappedByteBuffer window, long windowStart, long size, LongList lineStarts) {
+        window.order(ByteOrder.LITTLE_ENDIAN);
+        int limit = window.limit();
+        long lastLineStart = -1;
+        int i = 0;
+        for (; i <= limit - Long.BYTES; i += Long.BYTES) {
+            long x = window.getLong(i) ^ NEWLINES;
+            long found = (x - LOW_BITS) & ~x & HIGH_BITS;
+            while (found != 0) {
+                // 最低的标记一定是 '\n'，更高位的标记可能是借位造成的误判，需要再确认
+                int offset = i + (Long.numberOfTrailingZeros(found) >>> 3);
+                if (window.get(offset) == '\n') {
+                    lastLineStart = addLineStart(windowStart + offset + 1, size, lineStarts);
+                }
+                found &= found - 1;
+            }
+        }
+        for (; i < limit; i++) {
+            if (window.get(i) == '\n') {
+                lastLineStart = addLineStart(windowStart + i + 1, size, lineStarts);
+            }
+        }
+        return lastLineStart;
+    }
+
+    private static long addLineStart(long lineStart, long size, LongList lineStarts) {
+        if (lineStart < size) {
+            lineStarts.add(lineStart);
+        }
+        return lineStart;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public long lastModifiedMillis() {
+        return lastModifiedMillis;
+    }
+
+    public int lineCount() {
+        return lineStarts.length;
+    }
+
+    /**
+     * 第 lineNumber 行（从 0 开始）的原始字节，只读，和文件映射共享内存
+     */
+    public ByteBuffer line(int lineNumber) {
+        if (lineNumber < 0 || lineNumber >= lineStarts.length) {
+            throw new IndexOutOfBoundsException("lineNumber: " + lineNumber + ", lineCount: " + lineStarts.length);
+        }
+        long start = lineStarts[lineNumber];
+        long end = lineNumber + 1 < lineStarts.length ? lineStarts[lineNumber + 1] : size;
+        int windowIndex = Arrays.binarySearch(windowStarts, start);
+        if (windowIndex < 0) {
+            windowIndex = -windowIndex - 2;
+        }
+        ByteBuffer window = windows[windowIndex];
+        int from = (int) (start - windowStarts[windowIndex]);
+        int to = (int) (end - windowStarts[windowIndex]);
+        if (to > from && window.get(to - 1) == '\n') {
+            to--;
+            if (to > from && window.get(to - 1) == '\r') {
+                to--;
+            }
+        }
+        ByteBuffer line = window.asReadOnlyBuffer();
+        line.limit(to).position(from);
+        return line.slice();
+    }
+
+    /**
+     * 可以自动扩容的 long 数组
+     */
+    private static class LongList {
+
+        private long[] values = new long[1024];
+
+        private int size;
+
+        void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
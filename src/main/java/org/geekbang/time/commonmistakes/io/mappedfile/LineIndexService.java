@@ -0,0 +1,122 @@
+package org.geekbang.time.commonmistakes.io.mappedfile;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 缓存文件的 LineIndex，文件大小或修改时间变化后重建
+ * <p>
+ *     每次获取都要读取一次文件属性（一次 stat 系统调用），revalidateAfterMillis 大于 0 时，
+ *     距上次检查不到这么长时间就直接使用缓存，代价是这段时间内看不到文件的修改。<br>
+ *     每个 LineIndex 都映射着整个文件，缓存最多保留 maximumSize 个文件，超出时淘汰最久没有访问的文件，
+ *     被淘汰的 LineIndex 不再被引用后，它的映射随 GC 释放。
+ * </p>
+ */
+public class LineIndexService {
+
+    private static final int DEFAULT_MAXIMUM_SIZE = 64;
+
+    private final long revalidateAfterNanos;
+
+    private final int maximumSize;
+
+    private final ConcurrentMap<Path, Cached> cache = new ConcurrentHashMap<>();
+
+    public LineIndexService(long revalidateAfterMillis) {
+        this(revalidateAfterMillis, DEFAULT_MAXIMUM_SIZE);
+    }
+
+    public LineIndexService(long revalidateAfterMillis, int maximumSize) {
+        if (maximumSize <= 0) {
+            throw new IllegalArgumentException("maximumSize 必须大于 0");
+        }
+        this.revalidateAfterNanos = TimeUnit.MILLISECONDS.toNanos(revalidateAfterMillis);
+        this.maximumSize = maximumSize;
+    }
+
+    public LineIndex get(Path path) throws IOException {
+        Path key = path.toAbsolutePath().normalize();
+        Cached cached = cache.get(key);
+        long now = System.nanoTime();
+        if (cached != null) {
+            cached.accessedNanos = now;
+            if (now - cached.validatedNanos < revalidateAfterNanos) {
+                return cached.index;
+            }
+        }
+        BasicFileAttributes attributes = Files.readAttributes(key, BasicFileAttributes.class);
+        long lastModifiedMillis = attributes.lastModifiedTime().toMillis();
+        if (cached != null && cached.index.size() == attributes.size() && cached.index.lastModifiedMillis() == lastModifiedMillis) {
+            cached.validatedNanos = now;
+            return cached.index;
+        }
+        LineIndex index;
+        try {
+            // 同一个文件并发重建时只扫描一次
+            index = cache.compute(key, (k, current) -> {
+                if (current != null && current != cached) {
+                    return current;
+                }
+                try {
+                    return new Cached(LineIndex.build(k, lastModifiedMillis), now);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }).index;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        if (cached == null) {
+            this.evictIfNecessary();
+        }
+        return index;
+    }
+
+    /**
+     * 超出 maximumSize 时淘汰最久没有访问的文件。只在新增文件时调用，遍历的代价和扫描整个文件建索引相比可以忽略
+     */
+    private void evictIfNecessary() {
+        while (cache.size() > maximumSize) {
+            Map.Entry<Path, Cached> eldest = null;
+            for (Map.Entry<Path, Cached> entry : cache.entrySet()) {
+                if (eldest == null || entry.getValue().accessedNanos - eldest.getValue().accessedNanos < 0) {
+                    eldest = entry;
+                }
+            }
+            if (eldest == null) {
+                return;
+            }
+            cache.remove(eldest.getKey(), eldest.getValue());
+        }
+    }
+
+    public int lineCount(Path path) throws IOException {
+        return this.get(path).lineCount();
+    }
+
+    public void invalidate(Path path) {
+        cache.remove(path.toAbsolutePath().normalize());
+    }
+
+    private static class Cached {
+
+        private final LineIndex index;
+
+        private volatile long validatedNanos;
+
+        private volatile long accessedNanos;
+
+        Cached(LineIndex index, long validatedNanos) {
+            this.index = index;
+            this.validatedNanos = validatedNanos;
+            this.accessedNanos = validatedNanos;
+        }
+    }
+}
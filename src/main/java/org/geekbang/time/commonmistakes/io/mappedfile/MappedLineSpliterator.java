@@ -0,0 +1,175 @@
+package org.geekbang.time.commonmistakes.io.mappedfile;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * 按行遍历文件 [position, end) 范围内的内容，每一行是一个不包含 "\n" 或 "\r\n" 的只读 ByteBuffer
+ * <p>
+ *     Java 8 的 Files.lines 基于 BufferedReader，拆分时只能把读出来的一批行放进数组交出去，并行效果很差。
+ *     这里直接按文件位置拆分：从中点向后找到下一个 '\n'，在它后面切开，两半都从行首开始，各自独立映射和解析。<br>
+ *     遍历时每次只映射 windowSize 大小的窗口，走出窗口再映射下一个，所以文件可以超过 2GB，同时占用的内存也有上限；
+ *     一行跨越窗口时从行首重新映射，行比窗口还长就把窗口加倍（单行不能超过 2GB）。
+ *     返回的 ByteBuffer 引用了窗口的映射，需要保留时应复制一份，否则窗口无法被回收。
+ * </p>
+ */
+public class MappedLineSpliterator implements Spliterator<ByteBuffer> {
+
+    static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+
+    static final long DEFAULT_MIN_SPLIT_SIZE = 1024 * 1024;
+
+    private static final int SEARCH_BUFFER_SIZE = 8192;
+
+    private final FileChannel channel;
+
+    private final long end;
+
+    private final int windowSize;
+
+    private final long minSplitSize;
+
+    private long position;
+
+    private MappedByteBuffer window;
+
+    private long windowStart;
+
+    public MappedLineSpliterator(FileChannel channel) throws IOException {
+        this(channel, 0, channel.size(), DEFAULT_WINDOW_SIZE, DEFAULT_MIN_SPLIT_SIZE);
+    }
+
+    MappedLineSpliterator(FileChannel channel, long position, long end, int windowSize, long minSplitSize) {
+        this.channel = channel;
+        this.position = position;
+        this.end = end;
+        this.windowSize = windowSize;
+        this.minSplitSize = minSplitSize;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super ByteBuffer> action) {
+        if (position >= end) {
+            return false;
+        }
+        try {
+            action.accept(this.nextLine());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return true;
+    }
+
+    private ByteBuffer nextLine() throws IOException {
+        int windowLength = windowSize;
+        while (true) {
+            if (window == null || position < windowStart || position >= windowStart + window.limit()) {
+                this.map(position, windowLength);
+            }
+            int from = (int) (position - windowStart);
+            int limit = window.limit();
+            int newline = indexOfNewline(window, from, limit);
+            int to;
+            if (newline >= 0) {
+                to = newline;
+                position = windowStart + newline + 1;
+            } else if (windowStart + limit >= end) {
+                // 文件最后一行没有换行符
+                to = limit;
+                position = end;
+            } else {
+                if (windowStart == position) {
+                    if (windowLength == Integer.MAX_VALUE) {
+                        throw new IOException("单行超过 2GB，位置 " + position);
+                    }
+                    windowLength = (int) Math.min(Integer.MAX_VALUE, windowLength * 2L);
+                }
+                this.map(position, windowLength);
+                continue;
+            }
+            if (to > from && window.get(to - 1) == '\r') {
+                to--;
+            }
+            ByteBuffer line = window.duplicate();
+            line.limit(to).position(from);
+            return line.slice();
+        }
+    }
+
+    private void map(long start, int length) throws IOException {
+        window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(length, end - start));
+        windowStart = start;
+    }
+
+    /**
+     * 从中点之后的第一个换行处切开，前一半交给新的 Spliterator
+     */
+    @Override
+    public Spliterator<ByteBuffer> trySplit() {
+        long remaining = end - position;
+        if (remaining < minSplitSize) {
+            return null;
+        }
+        long split;
+        try {
+            split = this.nextLineStart(position + remaining / 2);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (split <= position || split >= end) {
+            return null;
+        }
+        MappedLineSpliterator prefix = new MappedLineSpliterator(channel, position, split, windowSize, minSplitSize);
+        position = split;
+        return prefix;
+    }
+
+    /**
+     * 用普通的读取找到 from 之后下一行的起始位置，找不到时返回 end
+     */
+    private long nextLineStart(long from) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SEARCH_BUFFER_SIZE);
+        long offset = from;
+        while (offset < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - offset));
+            int read = channel.read(buffer, offset);
+            if (read <= 0) {
+                break;
+            }
+            int newline = indexOfNewline(buffer, 0, read);
+            if (newline >= 0) {
+                return offset + newline + 1;
+            }
+            offset += read;
+        }
+        return end;
+    }
+
+    private static int indexOfNewline(ByteBuffer buffer, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer.get(i) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 剩余的字节数，不是行数
+     */
+    @Override
+    public long estimateSize() {
+        return end - position;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | NONNULL;
+    }
+}
@@ -0,0 +1,54 @@
+package org.geekbang.time.commonmistakes.io.mappedfile;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * 基于 MappedLineSpliterator 的行 Stream，可以用 parallel() 多线程处理大文件
+ * <p>
+ *     和 Files.lines 一样，Stream 持有打开的文件，必须用 try-with-resources 关闭。
+ * </p>
+ */
+public final class MappedLines {
+
+    private MappedLines() {
+    }
+
+    /**
+     * 每一行的原始字节，不做字符解码
+     */
+    public static Stream<ByteBuffer> byteLines(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            return StreamSupport.stream(new MappedLineSpliterator(channel), false).onClose(() -> {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 解码后的每一行，只支持 '\n' 编码为单字节 0x0A 的字符集（UTF-8、GBK、ISO-8859-1 等），不支持 UTF-16；
+     * 和 Files.lines 不同，无法解码的字节会被替换而不是抛出异常
+     */
+    public static Stream<String> lines(Path path, Charset charset) throws IOException {
+        if (!Arrays.equals("\n".getBytes(charset), new byte[]{'\n'})) {
+            throw new IllegalArgumentException("不支持的字符集：" + charset);
+        }
+        return byteLines(path).map(line -> charset.decode(line).toString());
+    }
+}
@@ -0,0 +1,97 @@
+package org.geekbang.time.commonmistakes.io.transcode;
+
+import lombok.Value;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Optional;
+
+/**
+ * 根据文件开头的一段样本猜测字符集：先看 BOM，再尝试严格的 UTF-8 解码，最后尝试 GBK
+ * <p>
+ *     纯 ASCII 的样本会被识别为 UTF-8；样本之后才出现的非法字节检测不到，转码时仍然会按严格模式报错。
+ * </p>
+ */
+public class CharsetDetector {
+
+    private static final Charset GBK = Charset.forName("GBK");
+
+    private final int sampleSize;
+
+    public CharsetDetector(int sampleSize) {
+        if (sampleSize <= 0) {
+            throw new IllegalArgumentException("sampleSize 必须大于 0");
+        }
+        this.sampleSize = sampleSize;
+    }
+
+    public Optional<Detection> detect(Path path) throws IOException {
+        byte[] sample = new byte[sampleSize];
+        int length = 0;
+        try (InputStream inputStream = Files.newInputStream(path)) {
+            int read;
+            while (length < sample.length && (read = inputStream.read(sample, length, sample.length - length)) != -1) {
+                length += read;
+            }
+        }
+        // 样本没有读到文件末尾时，最后一个字符可能被截断
+        return this.detect(ByteBuffer.wrap(sample, 0, length), length < sample.length);
+    }
+
+    Optional<Detection> detect(ByteBuffer sample, boolean endOfInput) {
+        if (startsWith(sample, 0xEF, 0xBB, 0xBF)) {
+            return Optional.of(new Detection(StandardCharsets.UTF_8, 3));
+        }
+        if (startsWith(sample, 0xFE, 0xFF)) {
+            return Optional.of(new Detection(StandardCharsets.UTF_16BE, 2));
+        }
+        if (startsWith(sample, 0xFF, 0xFE)) {
+            return Optional.of(new Detection(StandardCharsets.UTF_16LE, 2));
+        }
+        if (decodes(sample.duplicate(), StandardCharsets.UTF_8, endOfInput)) {
+            return Optional.of(new Detection(StandardCharsets.UTF_8, 0));
+        }
+        if (decodes(sample.duplicate(), GBK, endOfInput)) {
+            return Optional.of(new Detection(GBK, 0));
+        }
+        return Optional.empty();
+    }
+
+    private static boolean startsWith(ByteBuffer sample, int... bom) {
+        if (sample.remaining() < bom.length) {
+            return false;
+        }
+        for (int i = 0; i < bom.length; i++) {
+            if ((sample.get(sample.position() + i) & 0xFF) != bom[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean decodes(ByteBuffer sample, Charset charset, boolean endOfInput) {
+        CharsetDecoder decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        CharBuffer chars = CharBuffer.allocate((int) (sample.remaining() * (double) decoder.maxCharsPerByte()) + 1);
+        CoderResult result = decoder.decode(sample, chars, endOfInput);
+        // 样本截断时末尾可以剩下不完整的几个字节
+        return !result.isError() && (endOfInput ? sample.remaining() == 0 : sample.remaining() < 4);
+    }
+
+    @Value
+    public static class Detection {
+        Charset charset;
+        /** BOM 的字节数，转码时需要跳过 */
+        int bomLength;
+    }
+}
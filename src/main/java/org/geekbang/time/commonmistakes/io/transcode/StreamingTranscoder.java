@@ -0,0 +1,154 @@
+package org.geekbang.time.commonmistakes.io.transcode;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 流式转码，例如 GBK 转 UTF-8，内存占用和文件大小无关
+ * <p>
+ *     字节缓冲区、字符缓冲区和 CharsetDecoder/CharsetEncoder 在多次转码之间复用，所以一个实例不能被多个线程同时使用。
+ *     缓冲区用的是堆内存：JDK 的 UTF-8、GBK 等编解码器只有在缓冲区背后是数组时才走快速路径，直接内存缓冲区反而更慢。<br>
+ *     一个多字节字符可能被切在两次读取之间，decode 返回 UNDERFLOW 时不完整的字节留在输入缓冲区里，compact 后和下一次读取的数据拼起来；
+ *     同理编码时不成对的代理字符也留在字符缓冲区里。全部读完后再 flush 解码器和编码器。遇到非法或无法映射的字符时抛出异常。
+ * </p>
+ */
+public class StreamingTranscoder {
+
+    private static final int MIN_BUFFER_SIZE = 16;
+
+    private final ByteBuffer input;
+
+    private final CharBuffer chars;
+
+    private final ByteBuffer output;
+
+    private final Map<Charset, CharsetDecoder> decoders = new HashMap<>();
+
+    private final Map<Charset, CharsetEncoder> encoders = new HashMap<>();
+
+    private final CharsetDetector detector = new CharsetDetector(64 * 1024);
+
+    public StreamingTranscoder(int bufferSize) {
+        if (bufferSize < MIN_BUFFER_SIZE) {
+            throw new IllegalArgumentException("bufferSize 不能小于 " + MIN_BUFFER_SIZE);
+        }
+        this.input = ByteBuffer.allocate(bufferSize);
+        // 任何字符集每个字节最多解码出 1 个字符，每个字符最多编码成 4 个字节（UTF-8 的代理对按两个字符算，每个 2 字节）
+        this.chars = CharBuffer.allocate(bufferSize);
+        this.output = ByteBuffer.allocate(bufferSize * 4);
+    }
+
+    /**
+     * 先检测源文件的字符集再转码
+     *
+     * @throws IOException 无法识别源文件的字符集
+     */
+    public TranscodeResult transcode(Path source, Path target, Charset targetCharset) throws IOException {
+        CharsetDetector.Detection detection = detector.detect(source)
+                .orElseThrow(() -> new IOException("无法识别文件的字符集：" + source));
+        return this.transcode(source, detection.getCharset(), detection.getBomLength(), target, targetCharset);
+    }
+
+    public TranscodeResult transcode(Path source, Charset sourceCharset, Path target, Charset targetCharset) throws IOException {
+        return this.transcode(source, sourceCharset, 0, target, targetCharset);
+    }
+
+    private TranscodeResult transcode(Path source, Charset sourceCharset, int skipBytes, Path target, Charset targetCharset)
+            throws IOException {
+        long start = System.nanoTime();
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                     StandardOpenOption.WRITE)) {
+            in.position(skipBytes);
+            long bytesRead = this.transcode(in, sourceCharset, out, targetCharset) + skipBytes;
+            return new TranscodeResult(sourceCharset, targetCharset, bytesRead, out.size(), System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @return 读取的字节数
+     */
+    public long transcode(ReadableByteChannel in, Charset sourceCharset, WritableByteChannel out, Charset targetCharset)
+            throws IOException {
+        CharsetDecoder decoder = decoders.computeIfAbsent(sourceCharset, charset -> charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT)).reset();
+        CharsetEncoder encoder = encoders.computeIfAbsent(targetCharset, charset -> charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT)).reset();
+        input.clear();
+        chars.clear();
+        output.clear();
+        long bytesRead = 0;
+        boolean endOfInput = false;
+        while (!endOfInput) {
+            int read = in.read(input);
+            if (read == -1) {
+                endOfInput = true;
+            } else {
+                bytesRead += read;
+            }
+            input.flip();
+            CoderResult result;
+            do {
+                result = decoder.decode(input, chars, endOfInput);
+                if (result.isError()) {
+                    result.throwException();
+                }
+                this.encode(encoder, false, out);
+            } while (result.isOverflow());
+            // 不完整的多字节字符留在缓冲区开头
+            input.compact();
+        }
+        CoderResult result;
+        do {
+            result = decoder.flush(chars);
+            this.encode(encoder, false, out);
+        } while (result.isOverflow());
+        this.encode(encoder, true, out);
+        do {
+            result = encoder.flush(output);
+            this.drain(out);
+        } while (result.isOverflow());
+        return bytesRead;
+    }
+
+    /**
+     * 把字符缓冲区中的字符编码后写出，不成对的代理字符留到下一次
+     */
+    private void encode(CharsetEncoder encoder, boolean endOfInput, WritableByteChannel out) throws IOException {
+        chars.flip();
+        CoderResult result;
+        do {
+            result = encoder.encode(chars, output, endOfInput);
+            if (result.isError()) {
+                result.throwException();
+            }
+            if (result.isOverflow()) {
+                this.drain(out);
+            }
+        } while (result.isOverflow());
+        chars.compact();
+    }
+
+    private void drain(WritableByteChannel out) throws IOException {
+        output.flip();
+        while (output.hasRemaining()) {
+            out.write(output);
+        }
+        output.clear();
+    }
+}
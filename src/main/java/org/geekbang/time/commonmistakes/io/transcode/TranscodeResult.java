@@ -0,0 +1,35 @@
+package org.geekbang.time.commonmistakes.io.transcode;
+
+import lombok.Value;
+
+import java.nio.charset.Charset;
+
+/**
+ * 一次转码的结果
+ */
+@Value
+public class TranscodeResult {
+
+    Charset sourceCharset;
+
+    Charset targetCharset;
+
+    long bytesRead;
+
+    long bytesWritten;
+
+    long nanos;
+
+    /**
+     * 按读取的字节数计算
+     */
+    public long getBytesPerSecond() {
+        return nanos == 0 ? 0 : Math.round(bytesRead / (nanos / 1e9));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s -> %s: %d bytes -> %d bytes in %.3f ms, %.1f MB/s", sourceCharset, targetCharset,
+                bytesRead, bytesWritten, nanos / 1e6, getBytesPerSecond() / 1024.0 / 1024.0);
+    }
+}
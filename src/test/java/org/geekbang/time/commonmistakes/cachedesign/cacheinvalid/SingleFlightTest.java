@@ -0,0 +1,56 @@
+package org.geekbang.time.commonmistakes.cachedesign.cacheinvalid;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SingleFlightTest {
+
+    private static final int CALLERS = 32;
+
+    @Test
+    public void concurrentLoadsOfOneKeyRunLoaderOnce() throws Exception {
+        SingleFlight<Integer, String> singleFlight = new SingleFlight<>();
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch loaderStarted = new CountDownLatch(1);
+        CountDownLatch releaseLoader = new CountDownLatch(1);
+        ExecutorService executorService = Executors.newFixedThreadPool(CALLERS);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < CALLERS; i++) {
+                results.add(executorService.submit(() -> singleFlight.load(1, key -> {
+                    loads.incrementAndGet();
+                    loaderStarted.countDown();
+                    try {
+                        // loader 一直阻塞，直到其它调用者都在等待它的结果
+                        releaseLoader.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return "city" + key;
+                })));
+            }
+            Assert.assertTrue(loaderStarted.await(10, TimeUnit.SECONDS));
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (singleFlight.coalescedCount() < CALLERS - 1 && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+            releaseLoader.countDown();
+            for (Future<String> result : results) {
+                Assert.assertEquals("city1", result.get(10, TimeUnit.SECONDS));
+            }
+            Assert.assertEquals(1, loads.get());
+            Assert.assertEquals(CALLERS - 1, singleFlight.coalescedCount());
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+}